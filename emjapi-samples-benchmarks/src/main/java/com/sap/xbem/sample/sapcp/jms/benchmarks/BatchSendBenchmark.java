@@ -0,0 +1,85 @@
+package com.sap.xbem.sample.sapcp.jms.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sap.xbem.sample.sapcp.jms.p2p.batch.BatchSendResult;
+import com.sap.xbem.sample.sapcp.jms.p2p.batch.MessageBatchReader;
+import com.sap.xbem.sample.sapcp.jms.p2p.batch.MessageBatchSender;
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCompressor;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceCompressionProperties;
+
+/**
+ * Transacted send of a JSON array with {@value #BATCH_SIZE} messages through
+ * {@link MessageBatchSender}, as the batch endpoint does. The request body is
+ * parsed in every invocation. The score is per message, so it can be compared
+ * with {@link SendBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class BatchSendBenchmark {
+
+    static final int BATCH_SIZE = 10;
+    private static final String QUEUE = EmbeddedBroker.DROP_ADDRESS_PREFIX + "batch";
+
+    @State(Scope.Benchmark)
+    public static class BatchState {
+
+        ObjectMapper objectMapper;
+        MessageBatchSender sender;
+        byte[] body;
+
+        @Setup(Level.Trial)
+        public void setUp(BrokerState state) throws IOException {
+            objectMapper = new ObjectMapper();
+            sender = new MessageBatchSender(state.connectionPool, state.metrics,
+                    new MessageCompressor(new MessagingServiceCompressionProperties(), state.metrics));
+            ByteArrayOutputStream out = new ByteArrayOutputStream(BATCH_SIZE * (state.payloadSize + 3) + 2);
+            out.write('[');
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write('"');
+                out.write(state.payload);
+                out.write('"');
+            }
+            out.write(']');
+            body = out.toByteArray();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public BatchSendResult transacted(BatchState batch) throws JMSException, IOException {
+        try (MessageBatchReader reader = new MessageBatchReader(batch.objectMapper, new ByteArrayInputStream(batch.body), true)) {
+            BatchSendResult result = batch.sender.send(QUEUE, Session::createQueue, reader, BATCH_SIZE, Long.MAX_VALUE);
+            if (result.getSent() != BATCH_SIZE) {
+                throw new IllegalStateException("Sent " + result.getSent() + " of " + BATCH_SIZE + " messages. Error=" + result.getError());
+            }
+            return result;
+        }
+    }
+}
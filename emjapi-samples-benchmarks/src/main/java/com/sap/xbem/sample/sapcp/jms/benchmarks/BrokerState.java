@@ -0,0 +1,68 @@
+package com.sap.xbem.sample.sapcp.jms.benchmarks;
+
+import java.util.Random;
+
+import javax.jms.ConnectionFactory;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServicePoolProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.MessagingServiceConnectionPool;
+
+/**
+ * Broker, connection pool and payload shared by all threads of a benchmark.
+ * The pool uses the defaults of {@link MessagingServicePoolProperties} and no
+ * meter registry, so the numbers show the messaging code without the cost of
+ * the metrics.
+ */
+@State(Scope.Benchmark)
+public class BrokerState {
+
+    /**
+     * Payload size in bytes, from 100 B to 10 MB.
+     */
+    @Param({ "100", "10240", "1048576", "10485760" })
+    public int payloadSize;
+
+    EmbeddedBroker broker;
+    ConnectionFactory connectionFactory;
+    MessagingServiceConnectionPool connectionPool;
+    MessagingMetrics metrics;
+    byte[] payload;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        broker = new EmbeddedBroker();
+        broker.start();
+        connectionFactory = broker.createConnectionFactory();
+        metrics = MessagingMetrics.noRegistry();
+        connectionPool = new MessagingServiceConnectionPool(connectionFactory, new MessagingServicePoolProperties(), metrics);
+        payload = createPayload(payloadSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        connectionPool.close();
+        broker.close();
+    }
+
+    /**
+     * Printable ASCII with a fixed seed, so the payload is valid as JSON string
+     * and the same in every run. Random text instead of a repeated character
+     * keeps compressing transports from looking better than they are.
+     */
+    static byte[] createPayload(int size) {
+        Random random = new Random(42);
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) ('a' + random.nextInt(26));
+        }
+        return payload;
+    }
+}
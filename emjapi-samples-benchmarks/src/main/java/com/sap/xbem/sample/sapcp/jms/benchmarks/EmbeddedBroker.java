@@ -0,0 +1,66 @@
+package com.sap.xbem.sample.sapcp.jms.benchmarks;
+
+import javax.jms.ConnectionFactory;
+
+import org.apache.activemq.artemis.core.config.Configuration;
+import org.apache.activemq.artemis.core.config.impl.ConfigurationImpl;
+import org.apache.activemq.artemis.core.server.embedded.EmbeddedActiveMQ;
+import org.apache.activemq.artemis.core.settings.impl.AddressFullMessagePolicy;
+import org.apache.activemq.artemis.core.settings.impl.AddressSettings;
+import org.apache.qpid.jms.JmsConnectionFactory;
+
+/**
+ * Local ActiveMQ Artemis broker with an AMQP 1.0 acceptor, used as stand-in
+ * for Event Mesh. The client talks to it with the same Qpid JMS client which
+ * the messaging service factory wraps, only the OAuth handshake is missing.
+ * <p>
+ * Messages are kept in memory only. Destinations matching
+ * {@link #DROP_ADDRESS_PREFIX} drop messages once they hold more than
+ * {@link #DROP_ADDRESS_MAX_SIZE} bytes, so send benchmarks do not need a
+ * consumer to keep the broker from running out of memory.
+ * <p>
+ * The port defaults to {@value #DEFAULT_PORT} and can be changed with the
+ * system property {@code benchmark.broker.port}.
+ */
+public class EmbeddedBroker implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 5673;
+    public static final String DROP_ADDRESS_PREFIX = "queue:benchmark.drop.";
+    public static final long DROP_ADDRESS_MAX_SIZE = 64L * 1024 * 1024;
+
+    private final int port;
+    private final EmbeddedActiveMQ server = new EmbeddedActiveMQ();
+
+    public EmbeddedBroker() {
+        this(Integer.getInteger("benchmark.broker.port", DEFAULT_PORT));
+    }
+
+    public EmbeddedBroker(int port) {
+        this.port = port;
+    }
+
+    public void start() throws Exception {
+        Configuration configuration = new ConfigurationImpl();
+        configuration.setPersistenceEnabled(false);
+        configuration.setSecurityEnabled(false);
+        configuration.setJMXManagementEnabled(false);
+        configuration.addAcceptorConfiguration("amqp", "tcp://127.0.0.1:" + port + "?protocols=AMQP");
+        configuration.addAddressesSetting(DROP_ADDRESS_PREFIX + "#", new AddressSettings()
+                .setAddressFullMessagePolicy(AddressFullMessagePolicy.DROP)
+                .setMaxSizeBytes(DROP_ADDRESS_MAX_SIZE));
+        server.setConfiguration(configuration);
+        server.start();
+    }
+
+    /**
+     * @return plain Qpid JMS connection factory for the broker
+     */
+    public ConnectionFactory createConnectionFactory() {
+        return new JmsConnectionFactory("amqp://127.0.0.1:" + port);
+    }
+
+    @Override
+    public void close() throws Exception {
+        server.stop();
+    }
+}
@@ -0,0 +1,102 @@
+package com.sap.xbem.sample.sapcp.jms.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceDedupProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.consumer.MessageBatchReceiver;
+import com.sap.xbem.sample.sapcp.jms.p2p.dedup.MessageDeduplicator;
+
+/**
+ * Drains {@value #DRAIN_SIZE} messages from a queue, once with a connection
+ * per message as the sample did before the connection pool existed and once
+ * with {@link MessageBatchReceiver} as the batch receive endpoint does. The
+ * queue is filled before every invocation, outside of the measured time. The
+ * score is per message.
+ * <p>
+ * Run this benchmark with one thread only, otherwise the threads take each
+ * other's messages.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class ReceiveBenchmark {
+
+    static final int DRAIN_SIZE = 10;
+    private static final String QUEUE = "queue:benchmark.receive";
+    private static final long RECEIVE_TIMEOUT = 10000;
+
+    @State(Scope.Benchmark)
+    public static class ReceiveState {
+
+        MessageBatchReceiver receiver;
+
+        @Setup(Level.Trial)
+        public void setUp(BrokerState state) {
+            receiver = new MessageBatchReceiver(state.connectionPool, new ObjectMapper(), state.metrics,
+                    new MessageDeduplicator(new MessagingServiceDedupProperties(), state.metrics));
+        }
+
+        @Setup(Level.Invocation)
+        public void fill(BrokerState state) throws JMSException {
+            state.connectionPool.execute(pooledSession -> {
+                MessageProducer producer = pooledSession.getProducer(QUEUE, Session::createQueue);
+                for (int i = 0; i < DRAIN_SIZE; i++) {
+                    BytesMessage message = pooledSession.getSession().createBytesMessage();
+                    message.writeBytes(state.payload);
+                    producer.send(message);
+                }
+                return null;
+            });
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DRAIN_SIZE)
+    public void perRequestConnection(BrokerState state, ReceiveState receive, Blackhole blackhole) throws JMSException {
+        for (int i = 0; i < DRAIN_SIZE; i++) {
+            try (Connection connection = state.connectionFactory.createConnection()) {
+                connection.start();
+                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                MessageConsumer consumer = session.createConsumer(session.createQueue(QUEUE));
+                BytesMessage message = (BytesMessage) consumer.receive(RECEIVE_TIMEOUT);
+                if (message == null) {
+                    throw new IllegalStateException("No message received within " + RECEIVE_TIMEOUT + "ms.");
+                }
+                byte[] body = new byte[(int) message.getBodyLength()];
+                message.readBytes(body);
+                blackhole.consume(body);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DRAIN_SIZE)
+    public byte[] batchReceiver(ReceiveState receive) throws JMSException, IOException {
+        return receive.receiver.receive(QUEUE, Session::createQueue, DRAIN_SIZE, RECEIVE_TIMEOUT);
+    }
+}
@@ -0,0 +1,53 @@
+package com.sap.xbem.sample.sapcp.jms.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Synchronous send of a single message, once with a connection per request as
+ * the sample did before the connection pool existed and once over a pooled
+ * session with a cached producer as the REST endpoint does now.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class SendBenchmark {
+
+    private static final String QUEUE = EmbeddedBroker.DROP_ADDRESS_PREFIX + "send";
+
+    @Benchmark
+    public void perRequestConnection(BrokerState state) throws JMSException {
+        try (Connection connection = state.connectionFactory.createConnection()) {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(session.createQueue(QUEUE));
+            BytesMessage message = session.createBytesMessage();
+            message.writeBytes(state.payload);
+            producer.send(message);
+        }
+    }
+
+    @Benchmark
+    public void pooledProducer(BrokerState state) throws JMSException {
+        state.connectionPool.execute(pooledSession -> {
+            BytesMessage message = pooledSession.getSession().createBytesMessage();
+            message.writeBytes(state.payload);
+            pooledSession.getProducer(QUEUE, Session::createQueue).send(message);
+            return null;
+        });
+    }
+}
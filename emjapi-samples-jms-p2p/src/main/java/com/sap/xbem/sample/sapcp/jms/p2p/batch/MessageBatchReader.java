@@ -0,0 +1,64 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.batch;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reads the messages of a batch request one by one without loading the whole
+ * body. The body is either a JSON array or a stream of JSON values separated by
+ * new lines (NDJSON). A JSON string becomes the message as is, every other
+ * value is sent as its JSON representation.
+ */
+public class MessageBatchReader implements AutoCloseable {
+
+    private final JsonParser parser;
+    private final boolean array;
+    private boolean started;
+
+    /**
+     * @param objectMapper
+     *            used to create the parser
+     * @param body
+     *            request body
+     * @param array
+     *            {@code true} if the body is a JSON array, {@code false} for
+     *            NDJSON
+     * @throws IOException
+     *             if the body can't be read
+     */
+    public MessageBatchReader(ObjectMapper objectMapper, InputStream body, boolean array) throws IOException {
+        this.parser = objectMapper.getFactory().createParser(body);
+        this.array = array;
+    }
+
+    /**
+     * @return the next message or {@code null} if the body has been read
+     *         completely
+     * @throws IOException
+     *             if the body is not valid JSON
+     */
+    public String next() throws IOException {
+        if (!started) {
+            started = true;
+            if (array && parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Expected a JSON array of messages.");
+            }
+        }
+        JsonToken token = parser.nextToken();
+        if (token == null || (array && token == JsonToken.END_ARRAY)) {
+            return null;
+        }
+        JsonNode node = parser.readValueAsTree();
+        return node.isTextual() ? node.textValue() : node.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+}
@@ -0,0 +1,151 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.batch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCompressor;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.DestinationFactory;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.MessagingServiceConnectionPool;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.PooledSession;
+
+/**
+ * Sends many messages on a transacted session. Instead of one acknowledgement
+ * per message the broker only confirms each commit. A transaction is committed
+ * after a given number of messages or when it has been open for a given time,
+ * whichever comes first. Note that the time is only checked when the next
+ * message has been read from the request.
+ * <p>
+ * If a send or a commit fails, the whole transaction is rolled back and its
+ * offsets are reported as failed. The next transaction continues on a fresh
+ * session.
+ */
+@Component
+public class MessageBatchSender {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageBatchSender.class);
+
+    private final MessagingServiceConnectionPool connectionPool;
+    private final MessagingMetrics metrics;
+    private final MessageCompressor compressor;
+
+    @Autowired
+    public MessageBatchSender(MessagingServiceConnectionPool connectionPool, MessagingMetrics metrics, MessageCompressor compressor) {
+        this.connectionPool = connectionPool;
+        this.metrics = metrics;
+        this.compressor = compressor;
+    }
+
+    /**
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param destinationFactory
+     *            creates the destination, e.g. {@code Session::createQueue}
+     * @param reader
+     *            messages to send
+     * @param batchSize
+     *            maximum number of messages per transaction
+     * @param batchInterval
+     *            maximum time in milliseconds a transaction stays open
+     * @return counts per transaction and the offsets which could not be sent
+     * @throws JMSException
+     *             if no session could be borrowed from the pool
+     */
+    public BatchSendResult send(String destinationName, DestinationFactory destinationFactory, MessageBatchReader reader, int batchSize,
+            long batchInterval) throws JMSException {
+        BatchSendResult result = new BatchSendResult(destinationName);
+        long offset = 0;
+        long firstOffset = 0;
+        long batchStart = 0;
+        int pending = 0;
+        boolean failed = false;
+        PooledSession pooledSession = null;
+        try {
+            String message;
+            while ((message = reader.next()) != null) {
+                if (pending == 0) {
+                    if (pooledSession == null) {
+                        pooledSession = connectionPool.borrowSession(Session.SESSION_TRANSACTED);
+                    }
+                    firstOffset = offset;
+                    batchStart = System.currentTimeMillis();
+                    failed = false;
+                }
+                if (!failed) { // once a send failed the transaction is rolled back anyway
+                    long start = metrics.start();
+                    byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+                    try {
+                        MessageProducer producer = pooledSession.getProducer(destinationName, destinationFactory);
+                        BytesMessage byteMessage = compressor.createMessage(pooledSession.getSession(), destinationName, payload);
+                        producer.send(byteMessage);
+                        metrics.sent(destinationName, MessagingMetrics.OPERATION_BATCH, start, payload.length, true);
+                    } catch (JMSException e) {
+                        metrics.sent(destinationName, MessagingMetrics.OPERATION_BATCH, start, payload.length, false);
+                        LOG.warn("Could not send message at offset={} to destination={}, rolling back the batch.", offset, destinationName, e);
+                        failed = true;
+                    }
+                }
+                pending++;
+                offset++;
+                if (pending >= batchSize || System.currentTimeMillis() - batchStart >= batchInterval) {
+                    int count = pending;
+                    pending = 0;
+                    pooledSession = complete(pooledSession, destinationName, result, firstOffset, count, failed);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read batch request for destination={} at offset={}.", destinationName, offset, e);
+            result.setError("Invalid request body at offset=" + offset + ". Error=" + e.getMessage());
+        } finally {
+            result.setReceived(offset);
+            if (pending > 0) {
+                pooledSession = complete(pooledSession, destinationName, result, firstOffset, pending, failed);
+            }
+            if (pooledSession != null) {
+                pooledSession.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Commits the current transaction or rolls it back if a send failed. Returns
+     * the session to continue with or {@code null} if the session has been
+     * discarded.
+     */
+    private PooledSession complete(PooledSession pooledSession, String destinationName, BatchSendResult result, long firstOffset, int count,
+            boolean failed) {
+        if (!failed) {
+            long start = metrics.start();
+            try {
+                pooledSession.getSession().commit();
+                metrics.committed(destinationName, start, true);
+                result.committed(firstOffset, count);
+                LOG.debug("Committed batch of count={} starting at offset={}.", count, firstOffset);
+                return pooledSession;
+            } catch (JMSException e) {
+                metrics.committed(destinationName, start, false);
+                LOG.warn("Could not commit batch of count={} starting at offset={}.", count, firstOffset, e);
+            }
+        }
+        result.rolledBack(firstOffset, count);
+        try {
+            pooledSession.getSession().rollback();
+        } catch (JMSException e) {
+            LOG.debug("Could not roll back batch starting at offset={}.", firstOffset, e);
+        }
+        pooledSession.invalidate();
+        pooledSession.close();
+        return null;
+    }
+}
@@ -0,0 +1,48 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+/**
+ * Writes to the body of a {@link BytesMessage} and counts the bytes written.
+ * Closing the stream does not send the message.
+ */
+public class BytesMessageOutputStream extends OutputStream {
+
+    private final BytesMessage message;
+    private long count;
+
+    public BytesMessageOutputStream(BytesMessage message) {
+        this.message = message;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        try {
+            message.writeByte((byte) b);
+            count++;
+        } catch (JMSException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        try {
+            message.writeBytes(b, off, len);
+            count += len;
+        } catch (JMSException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return number of bytes written to the body
+     */
+    public long getCount() {
+        return count;
+    }
+}
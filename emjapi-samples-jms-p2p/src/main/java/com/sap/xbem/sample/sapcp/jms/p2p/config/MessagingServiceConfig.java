@@ -5,14 +5,25 @@ import com.sap.cloud.servicesdk.xbem.core.exception.MessagingException;
 import com.sap.cloud.servicesdk.xbem.core.impl.MessagingServiceFactoryCreator;
 import com.sap.cloud.servicesdk.xbem.extension.sapcp.jms.MessagingServiceJmsConnectionFactory;
 import com.sap.cloud.servicesdk.xbem.extension.sapcp.jms.MessagingServiceJmsSettings;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.BufferPool;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.MessagingServiceConnectionPool;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.pivotal.cfenv.core.CfCredentials;
 import io.pivotal.cfenv.core.CfEnv;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.util.Map;
 
 @Configuration
+@EnableConfigurationProperties({ MessagingServicePoolProperties.class, MessagingServiceBatchProperties.class, MessagingServiceAsyncProperties.class,
+        MessagingServiceConsumerProperties.class, MessagingServiceStreamProperties.class, MessagingServiceReceiveProperties.class,
+        MessagingServiceMetricsProperties.class, MessagingServiceSpoolProperties.class, MessagingServiceCompressionProperties.class,
+        MessagingServiceRateLimitProperties.class, MessagingServiceDedupProperties.class, MessagingServiceRequestReplyProperties.class })
 public class MessagingServiceConfig {
 
     @Bean
@@ -27,7 +38,8 @@ public class MessagingServiceConfig {
     }
 
     @Bean
-    public MessagingServiceJmsConnectionFactory getMessagingServiceJmsConnectionFactory(MessagingServiceFactory messagingServiceFactory) {
+    public MessagingServiceJmsConnectionFactory getMessagingServiceJmsConnectionFactory(MessagingServiceFactory messagingServiceFactory,
+            ObjectProvider<TokenCache> tokenCache) {
         try {
             /*
              * The settings object is preset with default values (see JavaDoc)
@@ -43,12 +55,50 @@ public class MessagingServiceConfig {
             settings.setAmqpIdleTimeout(-1);
 
             // Custom provided authentication request, it is not mandatory. Emjapi can request token from the client info.
-            //TokenRequest tokenRequest = new TokenRequest();
-            //settings.setAuthenticationRequest(tokenRequest::requestToken);
+            // With messaging.token-cache.enabled=true the TokenRequest is used through a TokenCache, see getTokenCache.
+            tokenCache.ifAvailable(settings::setAuthenticationRequest);
 
             return messagingServiceFactory.createConnectionFactory(MessagingServiceJmsConnectionFactory.class, settings);
         } catch (MessagingException e) {
             throw new IllegalStateException("Unable to create the Connection Factory", e);
         }
     }
+
+    /*
+     * Connections and sessions are expensive to create (AMQP handshake and
+     * token request), therefore they are pooled and shared between requests.
+     */
+    @Bean(destroyMethod = "close")
+    public MessagingServiceConnectionPool getMessagingServiceConnectionPool(MessagingServiceJmsConnectionFactory connectionFactory,
+            MessagingServicePoolProperties poolProperties, MessagingMetrics messagingMetrics) {
+        MessagingServiceConnectionPool connectionPool = new MessagingServiceConnectionPool(connectionFactory, poolProperties, messagingMetrics);
+        messagingMetrics.gauge("messaging.pool.sessions.active", connectionPool, MessagingServiceConnectionPool::getActiveSessions);
+        messagingMetrics.gauge("messaging.pool.sessions.idle", connectionPool, MessagingServiceConnectionPool::getIdleSessions);
+        messagingMetrics.counter("messaging.pool.producer.cache", connectionPool, MessagingServiceConnectionPool::getProducerCacheHits, "result", "hit");
+        messagingMetrics.counter("messaging.pool.producer.cache", connectionPool, MessagingServiceConnectionPool::getProducerCacheMisses, "result", "miss");
+        messagingMetrics.counter("messaging.pool.producer.evictions", connectionPool, MessagingServiceConnectionPool::getProducerCacheEvictions);
+        return connectionPool;
+    }
+
+    /*
+     * The TokenCache requests a new token only shortly before the cached one
+     * expires, not on every reconnect.
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(prefix = "messaging.token-cache", name = "enabled")
+    public TokenCache getTokenCache(MessagingMetrics messagingMetrics) {
+        TokenRequest tokenRequest = new TokenRequest();
+        return new TokenCache(tokenRequest::requestTokenResponse).bindTo(messagingMetrics);
+    }
+
+    @Bean
+    public MessagingMetrics getMessagingMetrics(MeterRegistry meterRegistry, MessagingServiceMetricsProperties metricsProperties) {
+        return new MessagingMetrics(meterRegistry, metricsProperties);
+    }
+
+    // Binary message bodies are copied through these buffers, so large payloads don't allocate one array per request
+    @Bean
+    public BufferPool getBufferPool(MessagingServicePoolProperties poolProperties) {
+        return new BufferPool(poolProperties.getBufferSize(), poolProperties.getMaxIdleBuffers());
+    }
 }
@@ -0,0 +1,117 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Queues which are consumed by message listeners as long as the application
+ * runs, e.g.
+ *
+ * <pre>
+ * messaging.consumer.queues[0].name=sap/em/1/NameOfQueue
+ * messaging.consumer.queues[0].concurrency=4
+ * messaging.consumer.queues[0].handler=loggingMessageHandler
+ * </pre>
+ */
+@ConfigurationProperties(prefix = "messaging.consumer")
+public class MessagingServiceConsumerProperties {
+
+    /**
+     * Queues to consume, none by default.
+     */
+    private List<QueueConsumer> queues = new ArrayList<>();
+
+    /**
+     * Time in milliseconds to wait before the consumers are restarted after the
+     * connection failed.
+     */
+    private long recoveryInterval = 5000;
+
+    /**
+     * Number of deliveries after which a message whose handler keeps failing
+     * is acknowledged and logged instead of redelivered, 0 for unlimited.
+     */
+    private int maxDeliveries = 10;
+
+    /**
+     * Time in milliseconds a consumer waits before a message whose handler
+     * failed is redelivered.
+     */
+    private long redeliveryDelay = 1000;
+
+    public List<QueueConsumer> getQueues() {
+        return queues;
+    }
+
+    public void setQueues(List<QueueConsumer> queues) {
+        this.queues = queues;
+    }
+
+    public long getRecoveryInterval() {
+        return recoveryInterval;
+    }
+
+    public void setRecoveryInterval(long recoveryInterval) {
+        this.recoveryInterval = recoveryInterval;
+    }
+
+    public int getMaxDeliveries() {
+        return maxDeliveries;
+    }
+
+    public void setMaxDeliveries(int maxDeliveries) {
+        this.maxDeliveries = maxDeliveries;
+    }
+
+    public long getRedeliveryDelay() {
+        return redeliveryDelay;
+    }
+
+    public void setRedeliveryDelay(long redeliveryDelay) {
+        this.redeliveryDelay = redeliveryDelay;
+    }
+
+    public static class QueueConsumer {
+
+        /**
+         * Queue name without the "queue:" prefix.
+         */
+        private String name;
+
+        /**
+         * Number of consumers, each with its own session.
+         */
+        private int concurrency = 1;
+
+        /**
+         * Name of the {@code MessageHandler} bean which processes the messages.
+         */
+        private String handler = "loggingMessageHandler";
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        public void setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+        }
+
+        public String getHandler() {
+            return handler;
+        }
+
+        public void setHandler(String handler) {
+            this.handler = handler;
+        }
+    }
+}
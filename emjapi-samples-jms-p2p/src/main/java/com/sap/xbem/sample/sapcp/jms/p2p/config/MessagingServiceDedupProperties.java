@@ -0,0 +1,92 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Deduplication of received messages, see
+ * {@link com.sap.xbem.sample.sapcp.jms.p2p.dedup.MessageDeduplicator}.
+ */
+@ConfigurationProperties(prefix = "messaging.dedup")
+public class MessagingServiceDedupProperties {
+
+    /**
+     * Drop messages which have been received before.
+     */
+    private boolean enabled = false;
+
+    /**
+     * Message property which identifies a message, the JMSMessageID if empty.
+     * Messages without the property are never dropped.
+     */
+    private String keyProperty = "";
+
+    /**
+     * Time in milliseconds a message is remembered at least, unless more than
+     * {@link #expectedMessages} arrive within it.
+     */
+    private long window = 3600000;
+
+    /**
+     * Number of messages per window the filter is sized for.
+     */
+    private long expectedMessages = 1000000;
+
+    /**
+     * Probability that a new message is dropped as duplicate because the filter
+     * can't tell it apart from an earlier one.
+     */
+    private double falsePositiveRate = 1e-9;
+
+    /**
+     * Number of most recent messages which are remembered exactly.
+     */
+    private int exactSize = 100000;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getKeyProperty() {
+        return keyProperty;
+    }
+
+    public void setKeyProperty(String keyProperty) {
+        this.keyProperty = keyProperty;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    public void setWindow(long window) {
+        this.window = window;
+    }
+
+    public long getExpectedMessages() {
+        return expectedMessages;
+    }
+
+    public void setExpectedMessages(long expectedMessages) {
+        this.expectedMessages = expectedMessages;
+    }
+
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    public void setFalsePositiveRate(double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    public int getExactSize() {
+        return exactSize;
+    }
+
+    public void setExactSize(int exactSize) {
+        this.exactSize = exactSize;
+    }
+}
@@ -0,0 +1,151 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings of the connection and session pool. All values can be overridden
+ * via the usual spring boot property sources, e.g.
+ * {@code messaging.pool.max-sessions=32}.
+ */
+@ConfigurationProperties(prefix = "messaging.pool")
+public class MessagingServicePoolProperties {
+
+    /**
+     * Number of shared connections. Sessions are spread round-robin over those
+     * connections.
+     */
+    private int connections = 1;
+
+    /**
+     * Maximum number of sessions which can be checked out at the same time.
+     */
+    private int maxSessions = 16;
+
+    /**
+     * Time in milliseconds a caller waits for a free session before giving up.
+     */
+    private long borrowTimeout = 5000;
+
+    /**
+     * Maximum number of sessions which receive calls may hold while they wait
+     * for messages. The other sessions stay available for sends. Capped at
+     * {@link #maxSessions}.
+     */
+    private int maxReceiveSessions = 8;
+
+    /**
+     * Time in milliseconds after which an unused session or connection is
+     * closed. The broker closes connections after an idle time of 5 minutes,
+     * therefore the default stays below that value.
+     */
+    private long idleTimeout = 240000;
+
+    /**
+     * Interval in milliseconds in which idle sessions and connections are
+     * evicted.
+     */
+    private long evictionInterval = 30000;
+
+    /**
+     * Maximum number of producers cached per session. The least recently used
+     * producer is closed if a session sends to more destinations.
+     */
+    private int producerCacheSize = 32;
+
+    /**
+     * Maximum number of decoded destination names kept by the REST
+     * controller.
+     */
+    private int destinationNameCacheSize = 256;
+
+    /**
+     * Size in bytes of the buffers used to copy binary message bodies from the
+     * request and to the response.
+     */
+    private int bufferSize = 8192;
+
+    /**
+     * Maximum number of copy buffers kept for reuse.
+     */
+    private int maxIdleBuffers = 64;
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public int getMaxReceiveSessions() {
+        return maxReceiveSessions;
+    }
+
+    public void setMaxReceiveSessions(int maxReceiveSessions) {
+        this.maxReceiveSessions = maxReceiveSessions;
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    public void setEvictionInterval(long evictionInterval) {
+        this.evictionInterval = evictionInterval;
+    }
+
+    public int getProducerCacheSize() {
+        return producerCacheSize;
+    }
+
+    public void setProducerCacheSize(int producerCacheSize) {
+        this.producerCacheSize = producerCacheSize;
+    }
+
+    public int getDestinationNameCacheSize() {
+        return destinationNameCacheSize;
+    }
+
+    public void setDestinationNameCacheSize(int destinationNameCacheSize) {
+        this.destinationNameCacheSize = destinationNameCacheSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getMaxIdleBuffers() {
+        return maxIdleBuffers;
+    }
+
+    public void setMaxIdleBuffers(int maxIdleBuffers) {
+        this.maxIdleBuffers = maxIdleBuffers;
+    }
+}
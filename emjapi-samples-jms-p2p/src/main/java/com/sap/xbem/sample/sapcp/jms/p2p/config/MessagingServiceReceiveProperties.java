@@ -0,0 +1,67 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Defaults and limits of the receive endpoints. The defaults can be overridden
+ * per request, the number of messages up to {@link #getMaxMessagesLimit()}.
+ */
+@ConfigurationProperties(prefix = "messaging.receive")
+public class MessagingServiceReceiveProperties {
+
+    /**
+     * Number of messages returned by one call if the request doesn't say.
+     */
+    private int maxMessages = 100;
+
+    /**
+     * Upper bound for the number of messages requested by one call, the whole
+     * batch is held in memory.
+     */
+    private int maxMessagesLimit = 10000;
+
+    /**
+     * Time in milliseconds a call waits for messages before it returns what it
+     * has received so far.
+     */
+    private long waitTime = 1000;
+
+    /**
+     * Time in milliseconds the single message receive endpoint waits for a
+     * message before it answers with status 204. The call holds a pooled session
+     * while it waits.
+     */
+    private long messageWaitTime = 30000;
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public void setMaxMessages(int maxMessages) {
+        this.maxMessages = maxMessages;
+    }
+
+    public int getMaxMessagesLimit() {
+        return maxMessagesLimit;
+    }
+
+    public void setMaxMessagesLimit(int maxMessagesLimit) {
+        this.maxMessagesLimit = maxMessagesLimit;
+    }
+
+    public long getWaitTime() {
+        return waitTime;
+    }
+
+    public void setWaitTime(long waitTime) {
+        this.waitTime = waitTime;
+    }
+
+    public long getMessageWaitTime() {
+        return messageWaitTime;
+    }
+
+    public void setMessageWaitTime(long messageWaitTime) {
+        this.messageWaitTime = messageWaitTime;
+    }
+}
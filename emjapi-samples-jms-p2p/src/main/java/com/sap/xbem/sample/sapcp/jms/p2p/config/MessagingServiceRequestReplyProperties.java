@@ -0,0 +1,53 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings of the request-reply endpoint, see
+ * {@link com.sap.xbem.sample.sapcp.jms.p2p.rpc.RequestReplyClient}.
+ */
+@ConfigurationProperties(prefix = "messaging.request-reply")
+public class MessagingServiceRequestReplyProperties {
+
+    /**
+     * Queue the replies are sent to, without prefix. A temporary queue is
+     * created if empty. Several application instances may share the queue,
+     * each one selects the replies to its own requests.
+     */
+    private String replyQueue = "";
+
+    /**
+     * Time in milliseconds to wait for a reply if the request doesn't set one.
+     */
+    private long timeout = 5000;
+
+    /**
+     * Maximum number of requests which wait for their reply. Further requests
+     * are rejected until replies come in or requests time out.
+     */
+    private int maxPending = 1000;
+
+    public String getReplyQueue() {
+        return replyQueue;
+    }
+
+    public void setReplyQueue(String replyQueue) {
+        this.replyQueue = replyQueue;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+}
@@ -0,0 +1,122 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings of the local spool which takes over sends while the broker is not
+ * reachable, see {@link com.sap.xbem.sample.sapcp.jms.p2p.spool.MessageSpool}.
+ */
+@ConfigurationProperties(prefix = "messaging.spool")
+public class MessagingServiceSpoolProperties {
+
+    /**
+     * Spool sends which can't be delivered to the broker instead of failing
+     * them.
+     */
+    private boolean enabled = false;
+
+    /**
+     * Directory of the journal files. It is created if it doesn't exist.
+     */
+    private String directory = "messaging-spool";
+
+    /**
+     * Size in bytes of one journal file. A single message must fit into one
+     * file.
+     */
+    private int segmentSize = 16 * 1024 * 1024;
+
+    /**
+     * Maximum size in bytes of all journal files, without the dead letters.
+     * Sends are rejected once the spool is full.
+     */
+    private long maxSize = 256L * 1024 * 1024;
+
+    /**
+     * Maximum size in bytes of the journal files of the dead letters, at least
+     * one segment. Further rejected messages are dropped once it is full.
+     */
+    private long deadLetterMaxSize = 64L * 1024 * 1024;
+
+    /**
+     * Maximum number of spooled messages sent to the broker in one transaction.
+     */
+    private int replayBatchSize = 100;
+
+    /**
+     * Interval in milliseconds in which the spool tries to send the spooled
+     * messages to the broker.
+     */
+    private long replayInterval = 1000;
+
+    /**
+     * Number of times the broker may reject a spooled message before it is
+     * moved to the dead letters in the sub directory {@code dead-letter}.
+     * Failures while the broker can't be reached don't count.
+     */
+    private int maxReplayAttempts = 5;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getDeadLetterMaxSize() {
+        return deadLetterMaxSize;
+    }
+
+    public void setDeadLetterMaxSize(long deadLetterMaxSize) {
+        this.deadLetterMaxSize = deadLetterMaxSize;
+    }
+
+    public int getReplayBatchSize() {
+        return replayBatchSize;
+    }
+
+    public void setReplayBatchSize(int replayBatchSize) {
+        this.replayBatchSize = replayBatchSize;
+    }
+
+    public long getReplayInterval() {
+        return replayInterval;
+    }
+
+    public void setReplayInterval(long replayInterval) {
+        this.replayInterval = replayInterval;
+    }
+
+    public int getMaxReplayAttempts() {
+        return maxReplayAttempts;
+    }
+
+    public void setMaxReplayAttempts(int maxReplayAttempts) {
+        this.maxReplayAttempts = maxReplayAttempts;
+    }
+}
@@ -0,0 +1,65 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Defaults and limits of the streaming receive endpoints. The defaults can be
+ * overridden per request.
+ */
+@ConfigurationProperties(prefix = "messaging.stream")
+public class MessagingServiceStreamProperties {
+
+    /**
+     * Time in milliseconds without a message after which the stream ends.
+     */
+    private long receiveTimeout = 30000;
+
+    /**
+     * Number of messages after which the stream ends.
+     */
+    private int maxMessages = 1000;
+
+    /**
+     * Number of messages the broker sends ahead, before the application
+     * processed the previous ones.
+     */
+    private int prefetch = 10;
+
+    /**
+     * Time in milliseconds after which a stream ends regardless of the other
+     * limits.
+     */
+    private long maxDuration = 600000;
+
+    public long getReceiveTimeout() {
+        return receiveTimeout;
+    }
+
+    public void setReceiveTimeout(long receiveTimeout) {
+        this.receiveTimeout = receiveTimeout;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public void setMaxMessages(int maxMessages) {
+        this.maxMessages = maxMessages;
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    public void setPrefetch(int prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    public long getMaxDuration() {
+        return maxDuration;
+    }
+
+    public void setMaxDuration(long maxDuration) {
+        this.maxDuration = maxDuration;
+    }
+}
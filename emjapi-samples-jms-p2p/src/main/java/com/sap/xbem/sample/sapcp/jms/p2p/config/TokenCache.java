@@ -0,0 +1,313 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+
+import io.micrometer.core.instrument.FunctionTimer;
+import reactor.core.publisher.Mono;
+
+/**
+ * Caches the access token returned by the token endpoint until it expires, so
+ * that reconnects don't request a new token each time. Can be passed to
+ * {@code MessagingServiceJmsSettings#setAuthenticationRequest}.
+ * <p>
+ * The token is refreshed in the background {@code refreshAhead} milliseconds
+ * before it expires (at the latest after half of its lifetime). Callers which
+ * find no valid token wait for the refresh, concurrent callers share a single
+ * request. Failed requests are retried with an exponential backoff: if a
+ * background refresh fails, the old token is used until it expires and the
+ * refresh is retried after the backoff. If there is no valid token, callers
+ * within the backoff fail right away with the last error instead of sending a
+ * request each, so a reconnect storm during an outage of the token endpoint
+ * sends one request per backoff.
+ */
+public class TokenCache implements Supplier<String>, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenCache.class);
+
+    private final Supplier<Mono<JsonNode>> tokenSource;
+    private final long refreshAhead;
+    private final long minBackoff;
+    private final long maxBackoff;
+    private final long requestTimeout;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicReference<CompletableFuture<Token>> inFlight = new AtomicReference<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+    private final LongAdder refreshLatency = new LongAdder();
+    private volatile Token token;
+    private volatile long lastRefreshLatency;
+    private volatile Failure failure;
+    private long backoff; // guarded by this
+    private ScheduledFuture<?> scheduledRefresh; // guarded by this
+
+    /**
+     * Refreshes a minute before expiry, retries after 1 to 60 seconds and
+     * waits up to 30 seconds for the token endpoint.
+     *
+     * @param tokenSource
+     *            requests a new token, e.g.
+     *            {@code new TokenRequest()::requestTokenResponse}
+     */
+    public TokenCache(Supplier<Mono<JsonNode>> tokenSource) {
+        this(tokenSource, 60000, 1000, 60000, 30000);
+    }
+
+    /**
+     * @param tokenSource
+     *            requests a new token, the response must contain
+     *            {@code access_token} and should contain {@code expires_in}
+     * @param refreshAhead
+     *            time in milliseconds before expiry the token is refreshed
+     * @param minBackoff
+     *            time in milliseconds before the first retry of a failed
+     *            refresh
+     * @param maxBackoff
+     *            maximum time in milliseconds between retries
+     * @param requestTimeout
+     *            time in milliseconds to wait for the token endpoint
+     */
+    public TokenCache(Supplier<Mono<JsonNode>> tokenSource, long refreshAhead, long minBackoff, long maxBackoff, long requestTimeout) {
+        this.tokenSource = tokenSource;
+        this.refreshAhead = refreshAhead;
+        this.minBackoff = Math.max(1, minBackoff);
+        this.maxBackoff = Math.max(this.minBackoff, maxBackoff);
+        this.requestTimeout = requestTimeout;
+        this.backoff = this.minBackoff;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "messaging-token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return a valid access token, requested from the token endpoint only if
+     *         the cached one expired
+     * @throws IllegalStateException
+     *             if no token could be requested, or the last request failed
+     *             and the backoff has not passed yet
+     */
+    @Override
+    public String get() {
+        Token current = token;
+        if (current != null && current.isValid()) {
+            hits.increment();
+            return current.value;
+        }
+        Failure lastFailure = failure;
+        if (lastFailure != null && System.currentTimeMillis() < lastFailure.retryAt) {
+            rejected.increment();
+            throw new IllegalStateException("No access token, the last request failed. Retrying in "
+                    + (lastFailure.retryAt - System.currentTimeMillis()) + "ms.", lastFailure.cause);
+        }
+        misses.increment();
+        try {
+            return refresh().get(requestTimeout, TimeUnit.MILLISECONDS).value;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not request an access token.", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Timed out after " + requestTimeout + "ms waiting for an access token.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for an access token.", e);
+        }
+    }
+
+    /**
+     * @return number of calls served from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of calls which had to wait for a token request
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of calls which failed right away because the last request
+     *         failed and its backoff has not passed yet
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return number of successful token requests
+     */
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    /**
+     * @return number of failed token requests
+     */
+    public long getRefreshFailures() {
+        return refreshFailures.sum();
+    }
+
+    /**
+     * @return duration in milliseconds of the last successful token request
+     */
+    public long getLastRefreshLatency() {
+        return lastRefreshLatency;
+    }
+
+    /**
+     * @return summed duration in milliseconds of all successful token requests
+     */
+    public long getTotalRefreshLatency() {
+        return refreshLatency.sum();
+    }
+
+    /**
+     * Registers the numbers of the cache as meters: {@code messaging.token.cache}
+     * tagged with {@code result} ({@code hit}, {@code miss} or {@code rejected})
+     * and the timer {@code messaging.token.refresh} tagged with
+     * {@code outcome}.
+     *
+     * @param metrics
+     *            registry of the application
+     * @return this cache
+     */
+    public TokenCache bindTo(MessagingMetrics metrics) {
+        metrics.counter("messaging.token.cache", this, TokenCache::getHits, "result", "hit");
+        metrics.counter("messaging.token.cache", this, TokenCache::getMisses, "result", "miss");
+        metrics.counter("messaging.token.cache", this, TokenCache::getRejected, "result", "rejected");
+        FunctionTimer.builder("messaging.token.refresh", this, TokenCache::getRefreshes, TokenCache::getTotalRefreshLatency, TimeUnit.MILLISECONDS)
+                .tag("outcome", "success").register(metrics.getRegistry());
+        metrics.counter("messaging.token.refresh.failures", this, TokenCache::getRefreshFailures);
+        return this;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Starts a token request unless one is running already.
+     */
+    private CompletableFuture<Token> refresh() {
+        CompletableFuture<Token> future = new CompletableFuture<>();
+        while (!inFlight.compareAndSet(null, future)) {
+            CompletableFuture<Token> running = inFlight.get();
+            if (running != null) {
+                return running;
+            }
+        }
+        long start = System.currentTimeMillis();
+        Mono<JsonNode> response;
+        try {
+            response = tokenSource.get();
+        } catch (RuntimeException e) {
+            refreshFailed(future, e);
+            return future;
+        }
+        response.timeout(Duration.ofMillis(requestTimeout)).map(tokenResponse -> toToken(tokenResponse, start))
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException("The token endpoint returned no response.")))
+                .subscribe(newToken -> refreshed(future, newToken, System.currentTimeMillis() - start), e -> refreshFailed(future, e));
+        return future;
+    }
+
+    private void refreshed(CompletableFuture<Token> future, Token newToken, long latency) {
+        token = newToken;
+        failure = null;
+        refreshes.increment();
+        refreshLatency.add(latency);
+        lastRefreshLatency = latency;
+        synchronized (this) {
+            backoff = minBackoff;
+            long lifetime = newToken.expiresAt - System.currentTimeMillis();
+            scheduleRefresh(lifetime - Math.min(refreshAhead, lifetime / 2));
+        }
+        LOG.debug("Refreshed access token in {}ms, it expires in {}ms.", latency, newToken.expiresAt - System.currentTimeMillis());
+        inFlight.set(null);
+        future.complete(newToken);
+    }
+
+    private void refreshFailed(CompletableFuture<Token> future, Throwable e) {
+        refreshFailures.increment();
+        Token current = token;
+        synchronized (this) {
+            if (current != null && current.isValid()) {
+                LOG.warn("Could not refresh the access token, keeping the current one and retrying in {}ms.", backoff, e);
+                scheduleRefresh(backoff);
+            } else {
+                // set before the request is released, so no caller starts another one within the backoff
+                failure = new Failure(e, System.currentTimeMillis() + backoff);
+                LOG.warn("Could not request an access token, callers fail right away for the next {}ms.", backoff, e);
+            }
+            backoff = Math.min(backoff * 2, maxBackoff);
+        }
+        inFlight.set(null);
+        future.completeExceptionally(e);
+    }
+
+    private void scheduleRefresh(long delay) {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+        }
+        if (delay > 0 && !scheduler.isShutdown()) {
+            scheduledRefresh = scheduler.schedule(this::refresh, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static Token toToken(JsonNode tokenResponse, long requested) {
+        JsonNode accessToken = tokenResponse.get("access_token");
+        if (accessToken == null || !accessToken.isTextual()) {
+            throw new IllegalStateException("The token response contains no access_token.");
+        }
+        // counted from the request, so the token expires a bit earlier than on the server. Without expires_in it is not cached
+        long expiresIn = tokenResponse.path("expires_in").asLong(0);
+        return new Token(accessToken.textValue(), requested + TimeUnit.SECONDS.toMillis(expiresIn));
+    }
+
+    private static class Failure {
+
+        private final Throwable cause;
+        private final long retryAt;
+
+        Failure(Throwable cause, long retryAt) {
+            this.cause = cause;
+            this.retryAt = retryAt;
+        }
+    }
+
+    private static class Token {
+
+        private final String value;
+        private final long expiresAt;
+
+        Token(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isValid() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+    }
+}
@@ -9,6 +9,7 @@ import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
 
 public class TokenRequest {
 
@@ -33,8 +34,15 @@ public class TokenRequest {
     }
 
     public String requestToken() {
-        JsonNode tokenResponse = webClient.post().contentType(MediaType.APPLICATION_FORM_URLENCODED).accept(
-                MediaType.APPLICATION_JSON).body(BodyInserters.fromFormData(formData)).retrieve().bodyToMono(JsonNode.class).block();
+        JsonNode tokenResponse = requestTokenResponse().block();
         return tokenResponse.get("access_token").textValue();
     }
+
+    /**
+     * @return the complete response of the token endpoint, including expires_in
+     */
+    public Mono<JsonNode> requestTokenResponse() {
+        return webClient.post().contentType(MediaType.APPLICATION_FORM_URLENCODED).accept(
+                MediaType.APPLICATION_JSON).body(BodyInserters.fromFormData(formData)).retrieve().bodyToMono(JsonNode.class);
+    }
 }
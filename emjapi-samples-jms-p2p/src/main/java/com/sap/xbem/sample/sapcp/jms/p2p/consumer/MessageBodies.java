@@ -0,0 +1,43 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.consumer;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCodec;
+
+/**
+ * Reads the body of a received message as string, regardless of whether it was
+ * sent as bytes (like the send endpoints do) or as text. Compressed bodies are
+ * decompressed.
+ */
+public final class MessageBodies {
+
+    private MessageBodies() {
+    }
+
+    public static String getBody(Message message) throws JMSException {
+        if (message instanceof BytesMessage) {
+            return new String(MessageCodec.readBody((BytesMessage) message), StandardCharsets.UTF_8);
+        }
+        if (message instanceof TextMessage) {
+            return ((TextMessage) message).getText();
+        }
+        return message.getBody(String.class);
+    }
+
+    /**
+     * @param body
+     *            the body as returned by {@link #getBody(Message)}
+     * @return the size of the body in bytes, for text only an estimate
+     */
+    public static long getBodyLength(Message message, String body) throws JMSException {
+        if (message instanceof BytesMessage) {
+            return ((BytesMessage) message).getBodyLength();
+        }
+        return body != null ? body.length() : 0;
+    }
+}
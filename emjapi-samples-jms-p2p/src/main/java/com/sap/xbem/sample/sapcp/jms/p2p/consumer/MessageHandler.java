@@ -0,0 +1,21 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.consumer;
+
+import javax.jms.Message;
+
+/**
+ * Processes the messages of a queue consumed by the
+ * {@link MessageListenerContainer}. Implementations are spring beans and are
+ * referenced by their bean name in the configuration. A handler is called
+ * concurrently if the queue has more than one consumer.
+ * <p>
+ * The message is acknowledged when the handler returns. If the handler throws,
+ * the message is redelivered.
+ * <p>
+ * The body of a {@code BytesMessage} may be compressed, read it with
+ * {@link com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCodec#readBody(javax.jms.BytesMessage)}.
+ */
+@FunctionalInterface
+public interface MessageHandler {
+
+    void handle(String queueName, Message message) throws Exception;
+}
@@ -0,0 +1,281 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.consumer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import com.sap.cloud.servicesdk.xbem.extension.sapcp.jms.MessagingServiceJmsConnectionFactory;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceConsumerProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceConsumerProperties.QueueConsumer;
+import com.sap.xbem.sample.sapcp.jms.p2p.dedup.MessageDeduplicator;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+
+/**
+ * Long running consumers for the queues configured in
+ * {@link MessagingServiceConsumerProperties}. Instead of polling with
+ * {@code receive()} the broker pushes the messages to a {@link MessageListener}
+ * which hands them to the configured {@link MessageHandler}.
+ * <p>
+ * The consumers use their own connection, so they don't take sessions from the
+ * pool used by the REST endpoints. Every consumer has its own session with
+ * {@link Session#CLIENT_ACKNOWLEDGE}: a message is acknowledged after the
+ * handler returned and recovered (redelivered) if the handler failed. The
+ * consumer waits {@link MessagingServiceConsumerProperties#getRedeliveryDelay()}
+ * before the redelivery, and a message which has been delivered
+ * {@link MessagingServiceConsumerProperties#getMaxDeliveries()} times is
+ * acknowledged and logged, so a message which its handler can never process
+ * doesn't block the queue (poison message). A message which has been handled
+ * before is acknowledged without calling the handler, see
+ * {@link MessageDeduplicator}.
+ * <p>
+ * The consumers start together with the application and are closed before the
+ * application context shuts down. Closing waits until running handlers have
+ * returned. If the connection fails, all consumers are restarted after
+ * {@link MessagingServiceConsumerProperties#getRecoveryInterval()}.
+ */
+@Component
+public class MessageListenerContainer implements SmartLifecycle, ExceptionListener, DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageListenerContainer.class);
+    private static final String QUEUE_PREFIX = "queue:"; // mandatory prefix for connection to a queue
+    private static final String DELIVERY_COUNT = "JMSXDeliveryCount";
+
+    private final ConnectionFactory connectionFactory;
+    private final MessagingServiceConsumerProperties properties;
+    private final ApplicationContext applicationContext;
+    private final MessagingMetrics metrics;
+    private final MessageDeduplicator deduplicator;
+    private final ScheduledExecutorService recoveryExecutor;
+    private final Object monitor = new Object();
+    private Connection connection;
+    private ScheduledFuture<?> recovery;
+    private volatile boolean running;
+
+    @Autowired
+    public MessageListenerContainer(MessagingServiceJmsConnectionFactory connectionFactory, MessagingServiceConsumerProperties properties,
+            ApplicationContext applicationContext, MessagingMetrics metrics, MessageDeduplicator deduplicator) {
+        this.connectionFactory = connectionFactory;
+        this.metrics = metrics;
+        this.deduplicator = deduplicator;
+        this.properties = properties;
+        this.applicationContext = applicationContext;
+        this.recoveryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "messaging-consumer-recovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void start() {
+        synchronized (monitor) {
+            running = true;
+            if (properties.getQueues().isEmpty()) {
+                return;
+            }
+            try {
+                connect();
+            } catch (JMSException e) {
+                LOG.error("Could not start the message consumers, retrying in {}ms.", properties.getRecoveryInterval(), e);
+                scheduleRecovery();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (monitor) {
+            running = false;
+            if (recovery != null) {
+                recovery.cancel(false);
+                recovery = null;
+            }
+            closeConnection();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void destroy() {
+        recoveryExecutor.shutdownNow();
+    }
+
+    /**
+     * Called by the client if the connection failed, e.g. all failover attempts
+     * have been used up.
+     */
+    @Override
+    public void onException(JMSException exception) {
+        LOG.warn("Connection of the message consumers failed, restarting in {}ms.", properties.getRecoveryInterval(), exception);
+        synchronized (monitor) {
+            scheduleRecovery();
+        }
+    }
+
+    private void connect() throws JMSException {
+        Connection newConnection = connectionFactory.createConnection();
+        try {
+            newConnection.setExceptionListener(this);
+            for (QueueConsumer queueConsumer : properties.getQueues()) {
+                MessageHandler handler = applicationContext.getBean(queueConsumer.getHandler(), MessageHandler.class);
+                for (int i = 0; i < queueConsumer.getConcurrency(); i++) {
+                    Session session = newConnection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+                    MessageConsumer consumer = session.createConsumer(session.createQueue(QUEUE_PREFIX + queueConsumer.getName()));
+                    consumer.setMessageListener(new HandlerMessageListener(session, queueConsumer.getName(), handler));
+                }
+                LOG.info("Started {} consumer(s) for queue={} with handler={}.", queueConsumer.getConcurrency(), queueConsumer.getName(),
+                        queueConsumer.getHandler());
+            }
+            newConnection.start();
+        } catch (JMSException | RuntimeException e) {
+            closeQuietly(newConnection);
+            throw e;
+        }
+        connection = newConnection;
+    }
+
+    private void scheduleRecovery() {
+        if (!running || (recovery != null && !recovery.isDone())) {
+            return;
+        }
+        recovery = recoveryExecutor.schedule(this::recover, properties.getRecoveryInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    private void recover() {
+        synchronized (monitor) {
+            if (!running) {
+                return;
+            }
+            closeConnection();
+            try {
+                connect();
+                LOG.info("Restarted the message consumers.");
+            } catch (JMSException | RuntimeException e) {
+                LOG.warn("Could not restart the message consumers, retrying in {}ms.", properties.getRecoveryInterval(), e);
+                recovery = null;
+                scheduleRecovery();
+            }
+        }
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            closeQuietly(connection); // waits for running message listeners
+            connection = null;
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (JMSException e) {
+            LOG.debug("Could not close the consumer connection.", e);
+        }
+    }
+
+    /**
+     * Hands a message to the handler and acknowledges it afterwards.
+     */
+    private class HandlerMessageListener implements MessageListener {
+
+        private final Session session;
+        private final String queueName;
+        private final MessageHandler handler;
+
+        HandlerMessageListener(Session session, String queueName, MessageHandler handler) {
+            this.session = session;
+            this.queueName = queueName;
+            this.handler = handler;
+        }
+
+        @Override
+        public void onMessage(Message message) {
+            String destinationName = QUEUE_PREFIX + queueName;
+            long start = metrics.start();
+            try {
+                if (!deduplicator.claim(destinationName, message)) {
+                    message.acknowledge();
+                    return;
+                }
+                try {
+                    handler.handle(queueName, message);
+                } catch (Exception e) {
+                    deduplicator.release(destinationName, message); // recovered below, so it is handled again
+                    throw e;
+                }
+                deduplicator.processed(destinationName, message);
+                metrics.handled(destinationName, start, true);
+                long ackStart = metrics.start();
+                message.acknowledge();
+                metrics.acknowledged(destinationName, MessagingMetrics.OPERATION_LISTENER, ackStart, true);
+            } catch (Exception e) {
+                metrics.handled(destinationName, start, false);
+                int deliveries = getDeliveryCount(message);
+                if (properties.getMaxDeliveries() > 0 && deliveries >= properties.getMaxDeliveries()) {
+                    drop(message, deliveries, e);
+                } else {
+                    LOG.error("Could not handle message from queue={}, it will be redelivered.", queueName, e);
+                    redeliver();
+                }
+            }
+        }
+
+        private void drop(Message message, int deliveries, Exception failure) {
+            try {
+                LOG.error("Could not handle message {} from queue={} in {} deliveries, dropping it.", message.getJMSMessageID(), queueName,
+                        deliveries, failure);
+                message.acknowledge();
+            } catch (JMSException e) {
+                LOG.warn("Could not drop the message from queue={}, it will be redelivered.", queueName, e);
+                redeliver();
+            }
+        }
+
+        private void redeliver() {
+            try {
+                Thread.sleep(properties.getRedeliveryDelay()); // the session delivers nothing else meanwhile
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                session.recover();
+            } catch (JMSException e) {
+                LOG.warn("Could not recover the session of queue={}.", queueName, e);
+            }
+        }
+
+        /**
+         * @return the number of deliveries including this one, set by the
+         *         broker, 1 if it is missing
+         */
+        private int getDeliveryCount(Message message) {
+            try {
+                return message.propertyExists(DELIVERY_COUNT) ? message.getIntProperty(DELIVERY_COUNT) : 1;
+            } catch (JMSException | RuntimeException e) {
+                return 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.dedup;
+
+/**
+ * Set of the most recently added 64 bit fingerprints. Once it is full, adding a
+ * fingerprint removes the oldest one. The fingerprints are kept in a
+ * {@code long[]} hash table with linear probing and in a ring buffer which
+ * remembers their order, so neither lookups nor updates allocate. Not thread
+ * safe.
+ * <p>
+ * A fingerprint which is {@link #remove(long) removed} leaves an empty place in
+ * the order, which is only given free once it is the oldest one. Until then it
+ * takes room in the ring, so a set with removed fingerprints may drop its
+ * oldest one before it holds {@code capacity} fingerprints.
+ */
+class FingerprintSet {
+
+    private static final long EMPTY = 0L;
+
+    private final long[] table;
+    private final int[] positions; // place of the fingerprint of a table slot in the ring
+    private final int mask;
+    private final long[] ring;
+    private int head;
+    private int used; // places of the ring from head on, including the removed ones
+    private int size;
+
+    /**
+     * @param capacity
+     *            maximum number of fingerprints
+     */
+    FingerprintSet(int capacity) {
+        this.ring = new long[Math.max(1, capacity)];
+        int tableSize = Integer.highestOneBit(Math.max(2, ring.length) * 2 - 1) * 2; // load factor of at most 0.5
+        this.table = new long[tableSize];
+        this.positions = new int[tableSize];
+        this.mask = tableSize - 1;
+    }
+
+    boolean contains(long fingerprint) {
+        return find(normalize(fingerprint)) >= 0;
+    }
+
+    void add(long fingerprint) {
+        fingerprint = normalize(fingerprint);
+        if (find(fingerprint) >= 0) {
+            return;
+        }
+        if (used == ring.length) {
+            long oldest = ring[head];
+            if (oldest != EMPTY) {
+                delete(find(oldest));
+                size--;
+            }
+            head = (head + 1) % ring.length;
+            used--;
+        }
+        int slot = findFree(fingerprint);
+        int position = (head + used) % ring.length;
+        table[slot] = fingerprint;
+        positions[slot] = position;
+        ring[position] = fingerprint;
+        used++;
+        size++;
+    }
+
+    /**
+     * @return number of fingerprints in the set, without the removed ones
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes the fingerprint from the table and leaves an empty place in the
+     * ring, so its place in the order can't evict it once it is added again.
+     */
+    void remove(long fingerprint) {
+        int slot = find(normalize(fingerprint));
+        if (slot < 0) {
+            return;
+        }
+        ring[positions[slot]] = EMPTY;
+        delete(slot);
+        size--;
+    }
+
+    /**
+     * @return table slot of the fingerprint, {@code -1} if it isn't in the set
+     */
+    private int find(long fingerprint) {
+        for (int slot = slot(fingerprint);; slot = (slot + 1) & mask) {
+            long value = table[slot];
+            if (value == EMPTY) {
+                return -1;
+            }
+            if (value == fingerprint) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Empties the slot and moves the following entries of its probe sequence
+     * back, so no tombstones are needed in the table.
+     */
+    private void delete(int slot) {
+        int gap = slot;
+        for (int next = (gap + 1) & mask; table[next] != EMPTY; next = (next + 1) & mask) {
+            int home = slot(table[next]);
+            // move the entry unless its home lies cyclically within (gap, next]
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                table[gap] = table[next];
+                positions[gap] = positions[next];
+                gap = next;
+            }
+        }
+        table[gap] = EMPTY;
+    }
+
+    private int findFree(long fingerprint) {
+        int slot = slot(fingerprint);
+        while (table[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int slot(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    }
+
+    private static long normalize(long fingerprint) {
+        return fingerprint == EMPTY ? 1L : fingerprint;
+    }
+}
@@ -0,0 +1,112 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.dedup;
+
+import java.util.Arrays;
+
+/**
+ * Bloom filter over a sliding time window, made of two generations of the same
+ * size. Hashes are added to the current generation and looked up in both.
+ * When the current generation is older than the window or holds the expected
+ * number of hashes, it becomes the previous one and the old previous one is
+ * cleared and reused. So a hash is remembered for at least one window, unless
+ * more hashes than expected arrive in it, and the memory never grows.
+ * <p>
+ * The positions of a hash are derived from two 64 bit hashes (double
+ * hashing), lookups neither allocate nor depend on the number of hashes. Not
+ * thread safe.
+ */
+class RotatingBloomFilter {
+
+    private final long[][] generations = new long[2][];
+    private final long bits;
+    private final int hashes;
+    private final long capacity;
+    private final long window;
+    private int current;
+    private long count;
+    private long previousCount;
+    private long generationStart;
+
+    /**
+     * @param capacity
+     *            number of hashes per generation for which the false positive
+     *            rate is kept
+     * @param falsePositiveRate
+     *            probability that a hash which has not been added is found
+     * @param window
+     *            time in milliseconds after which a generation is rotated
+     */
+    RotatingBloomFilter(long capacity, double falsePositiveRate, long window) {
+        this.capacity = Math.max(1, capacity);
+        long optimalBits = (long) Math.ceil(-this.capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(1L << 26, Math.max(1, (optimalBits + 63) / 64)); // at most 2^32 bits, see index()
+        this.bits = words * 64L;
+        this.hashes = Math.max(1, (int) Math.round((double) bits / this.capacity * Math.log(2)));
+        this.window = window;
+        this.generations[0] = new long[words];
+        this.generations[1] = new long[words];
+        this.generationStart = System.currentTimeMillis();
+    }
+
+    boolean mightContain(long hash1, long hash2) {
+        rotateIfDue();
+        return contains(generations[current], hash1, hash2) || contains(generations[1 - current], hash1, hash2);
+    }
+
+    void put(long hash1, long hash2) {
+        rotateIfDue();
+        long[] generation = generations[current];
+        long combined = hash1;
+        for (int i = 0; i < hashes; i++) {
+            long index = index(combined);
+            generation[(int) (index >>> 6)] |= 1L << index;
+            combined += hash2;
+        }
+        count++;
+    }
+
+    /**
+     * @return number of hashes added to both generations
+     */
+    long size() {
+        return count + previousCount;
+    }
+
+    /**
+     * @return memory of both generations in bytes
+     */
+    long getBytes() {
+        return 2 * bits / 8;
+    }
+
+    private boolean contains(long[] generation, long hash1, long hash2) {
+        long combined = hash1;
+        for (int i = 0; i < hashes; i++) {
+            long index = index(combined);
+            if ((generation[(int) (index >>> 6)] & (1L << index)) == 0) {
+                return false;
+            }
+            combined += hash2;
+        }
+        return true;
+    }
+
+    /**
+     * Maps the upper 32 bits of the hash to {@code [0, bits)} with a
+     * multiplication instead of a division.
+     */
+    private long index(long hash) {
+        return ((hash >>> 32) * bits) >>> 32;
+    }
+
+    private void rotateIfDue() {
+        long now = System.currentTimeMillis();
+        if (count < capacity && now - generationStart < window) {
+            return;
+        }
+        current = 1 - current;
+        Arrays.fill(generations[current], 0L);
+        previousCount = count;
+        count = 0;
+        generationStart = now;
+    }
+}
@@ -0,0 +1,48 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.pool;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Size bounded map which drops the least recently used entry. The map is not
+ * thread safe, wrap it with {@link java.util.Collections#synchronizedMap(Map)}
+ * if it is shared.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class LruCache<K, V> extends LinkedHashMap<K, V> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int maxSize;
+    private final transient BiConsumer<K, V> evictionListener;
+
+    public LruCache(int maxSize) {
+        this(maxSize, (key, value) -> {
+        });
+    }
+
+    /**
+     * @param maxSize
+     *            maximum number of entries
+     * @param evictionListener
+     *            called with every entry which is dropped because the cache is
+     *            full, e.g. to close the cached resource
+     */
+    public LruCache(int maxSize, BiConsumer<K, V> evictionListener) {
+        super(16, 0.75f, true);
+        this.maxSize = Math.max(1, maxSize);
+        this.evictionListener = evictionListener;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        if (size() > maxSize) {
+            evictionListener.accept(eldest.getKey(), eldest.getValue());
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,112 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.pool;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+
+/**
+ * A {@link Session} checked out from the {@link MessagingServiceConnectionPool}.
+ * Closing it hands the session back to the pool instead of closing it on the
+ * broker. Call {@link #invalidate()} before closing if the session must not be
+ * reused, e.g. after a {@link JMSException}.
+ * <p>
+ * Producers are cached per session and destination, see
+ * {@link #getProducer(String, DestinationFactory)}. They are closed together
+ * with the session.
+ */
+public class PooledSession implements AutoCloseable {
+
+    private final MessagingServiceConnectionPool pool;
+    private final MessagingServiceConnectionPool.PooledConnection connection;
+    private final Session session;
+    private final int acknowledgeMode;
+    private final ProducerCache producerCache;
+    private final AtomicBoolean checkedOut = new AtomicBoolean();
+    private volatile long lastReleased;
+    private volatile boolean receiving;
+    private boolean invalid;
+
+    PooledSession(MessagingServiceConnectionPool pool, MessagingServiceConnectionPool.PooledConnection connection, Session session,
+            int acknowledgeMode, int producerCacheSize, ProducerCache.Statistics producerCacheStatistics, MessagingMetrics metrics) {
+        this.pool = pool;
+        this.connection = connection;
+        this.session = session;
+        this.acknowledgeMode = acknowledgeMode;
+        this.producerCache = new ProducerCache(session, producerCacheSize, producerCacheStatistics, metrics);
+        this.lastReleased = System.currentTimeMillis();
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public int getAcknowledgeMode() {
+        return acknowledgeMode;
+    }
+
+    /**
+     * Returns the cached producer for the destination or creates it. Do not
+     * close the returned producer.
+     *
+     * @param name
+     *            destination name including the mandatory prefix, e.g.
+     *            {@code queue:<queue-name>}
+     * @param destinationFactory
+     *            creates the destination on a cache miss, e.g.
+     *            {@code Session::createQueue}
+     * @return producer bound to the destination
+     * @throws JMSException
+     *             if the producer could not be created
+     */
+    public MessageProducer getProducer(String name, DestinationFactory destinationFactory) throws JMSException {
+        return producerCache.getProducer(name, destinationFactory);
+    }
+
+    /**
+     * Marks the session as unusable. It will be closed instead of being returned
+     * to the pool.
+     */
+    public void invalidate() {
+        invalid = true;
+    }
+
+    /**
+     * Returns the session to the pool.
+     */
+    @Override
+    public void close() {
+        if (!checkedOut.compareAndSet(true, false)) {
+            return; // already returned
+        }
+        if (invalid || connection.isBroken()) {
+            pool.discard(this);
+        } else {
+            pool.release(this);
+        }
+    }
+
+    MessagingServiceConnectionPool.PooledConnection getConnection() {
+        return connection;
+    }
+
+    long getLastReleased() {
+        return lastReleased;
+    }
+
+    boolean isReceiving() {
+        return receiving;
+    }
+
+    void markCheckedOut(boolean receiving) {
+        this.receiving = receiving;
+        checkedOut.set(true);
+    }
+
+    void markReleased() {
+        this.lastReleased = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,109 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.pool;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+
+/**
+ * Destinations and producers of a single pooled session, keyed by the
+ * destination name. Attaching a producer is a round trip to the broker, so hot
+ * destinations keep their producer for as long as the session lives. The cache
+ * is bounded and drops (and closes) the least recently used producer.
+ * <p>
+ * Like the session itself the cache must only be used by the thread which
+ * checked out the session.
+ */
+class ProducerCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProducerCache.class);
+
+    private final Session session;
+    private final Statistics statistics;
+    private final MessagingMetrics metrics;
+    private final Map<String, CachedProducer> producers;
+
+    ProducerCache(Session session, int maxSize, Statistics statistics, MessagingMetrics metrics) {
+        this.session = session;
+        this.statistics = statistics;
+        this.metrics = metrics;
+        this.producers = new LruCache<>(maxSize, this::evicted);
+    }
+
+    MessageProducer getProducer(String name, DestinationFactory destinationFactory) throws JMSException {
+        CachedProducer cachedProducer = producers.get(name);
+        if (cachedProducer == null) {
+            statistics.misses.increment();
+            long start = metrics.start();
+            try {
+                Destination destination = destinationFactory.create(session, name);
+                cachedProducer = new CachedProducer(session.createProducer(destination));
+            } catch (JMSException | RuntimeException e) {
+                metrics.producerCreated(name, start, false);
+                throw e;
+            }
+            metrics.producerCreated(name, start, true);
+            producers.put(name, cachedProducer);
+        } else {
+            statistics.hits.increment();
+        }
+        cachedProducer.uses++;
+        cachedProducer.lastUsed = System.currentTimeMillis();
+        return cachedProducer.producer;
+    }
+
+    private void evicted(String name, CachedProducer cachedProducer) {
+        statistics.evictions.increment();
+        long now = System.currentTimeMillis();
+        LOG.debug("Evicting producer for destination={} after uses={}, age={}ms, idle={}ms.", name, cachedProducer.uses,
+                now - cachedProducer.created, now - cachedProducer.lastUsed);
+        try {
+            cachedProducer.producer.close();
+        } catch (JMSException e) {
+            LOG.debug("Could not close evicted producer for destination={}.", name, e);
+        }
+    }
+
+    private static class CachedProducer {
+
+        private final MessageProducer producer;
+        private final long created = System.currentTimeMillis();
+        private long uses;
+        private long lastUsed;
+
+        CachedProducer(MessageProducer producer) {
+            this.producer = producer;
+        }
+    }
+
+    /**
+     * Hit, miss and eviction counts, shared by the caches of all sessions of a
+     * pool.
+     */
+    static class Statistics {
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        long getHits() {
+            return hits.sum();
+        }
+
+        long getMisses() {
+            return misses.sum();
+        }
+
+        long getEvictions() {
+            return evictions.sum();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.pool;
+
+import javax.jms.JMSException;
+
+/**
+ * Work which is executed with a {@link PooledSession}, see
+ * {@link MessagingServiceConnectionPool#execute(SessionCallback)}.
+ *
+ * @param <T> result type
+ */
+@FunctionalInterface
+public interface SessionCallback<T> {
+
+    T doInSession(PooledSession session) throws JMSException;
+}
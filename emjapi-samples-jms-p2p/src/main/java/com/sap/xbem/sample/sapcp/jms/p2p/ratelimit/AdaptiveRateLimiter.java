@@ -0,0 +1,138 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceRateLimitProperties;
+
+/**
+ * Token bucket whose rate follows the health of the sends (additive increase,
+ * multiplicative decrease). Every interval the sends of the past interval are
+ * evaluated: if too many failed or they took too long on average, the rate is
+ * multiplied with the decrease factor, down to the minimum rate. Otherwise a
+ * part of the maximum rate is added again, up to the maximum rate.
+ * <p>
+ * The bucket holds {@code burst} seconds of the current rate, so an idle
+ * destination can take a short burst at once.
+ */
+public class AdaptiveRateLimiter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double maxRate;
+    private final double minRate;
+    private final double burst;
+    private final long latencyThreshold;
+    private final double errorThreshold;
+    private final double decreaseFactor;
+    private final double increase;
+    private final long adjustInterval;
+
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long windowStart;
+    private long windowSends;
+    private long windowFailures;
+    private long windowLatency;
+
+    /**
+     * @param maxRate
+     *            maximum number of permits per second
+     * @param properties
+     *            burst and adjustment settings
+     */
+    public AdaptiveRateLimiter(double maxRate, MessagingServiceRateLimitProperties properties) {
+        this.maxRate = maxRate;
+        this.minRate = Math.max(Math.min(1, maxRate), maxRate * properties.getMinRateRatio());
+        this.burst = Math.max(0, properties.getBurst());
+        this.latencyThreshold = TimeUnit.MILLISECONDS.toNanos(properties.getLatencyThreshold());
+        this.errorThreshold = properties.getErrorThreshold();
+        this.decreaseFactor = properties.getDecreaseFactor();
+        this.increase = maxRate * properties.getIncreaseRatio();
+        this.adjustInterval = TimeUnit.MILLISECONDS.toNanos(properties.getAdjustInterval());
+        this.rate = maxRate;
+        this.tokens = getCapacity();
+        this.lastRefill = System.nanoTime();
+        this.windowStart = lastRefill;
+    }
+
+    /**
+     * @return 0 if a permit was taken, otherwise the time in nanoseconds until
+     *         the next permit is available
+     */
+    public synchronized long tryAcquire() {
+        long now = System.nanoTime();
+        adjust(now);
+        tokens = Math.min(getCapacity(), tokens + (now - lastRefill) * rate / NANOS_PER_SECOND);
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens--;
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) * NANOS_PER_SECOND / rate);
+    }
+
+    /**
+     * Gives back a permit which was not used, e.g. because another limit
+     * rejected the send.
+     */
+    public synchronized void release() {
+        tokens = Math.min(getCapacity(), tokens + 1);
+    }
+
+    /**
+     * @param latency
+     *            time in nanoseconds the send took
+     * @param success
+     *            false if the send failed
+     */
+    public synchronized void record(long latency, boolean success) {
+        windowSends++;
+        windowLatency += latency;
+        if (!success) {
+            windowFailures++;
+        }
+    }
+
+    /**
+     * @return current number of permits per second
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * @return true if the bucket is full and the rate is not lowered, so a new
+     *         limiter would behave the same
+     */
+    public synchronized boolean isIdle() {
+        double refilled = tokens + (System.nanoTime() - lastRefill) * rate / NANOS_PER_SECOND;
+        return rate >= maxRate && refilled >= getCapacity();
+    }
+
+    private double getCapacity() {
+        return Math.max(1, rate * burst);
+    }
+
+    private void adjust(long now) {
+        if (now - windowStart < adjustInterval) {
+            return;
+        }
+        if (windowSends > 0) {
+            if (windowFailures > windowSends * errorThreshold || windowLatency / windowSends > latencyThreshold) {
+                rate = Math.max(minRate, rate * decreaseFactor);
+                tokens = Math.min(tokens, getCapacity());
+            } else {
+                rate = Math.min(maxRate, rate + increase);
+            }
+        }
+        windowStart = now;
+        windowSends = 0;
+        windowFailures = 0;
+        windowLatency = 0;
+    }
+}
@@ -0,0 +1,197 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.ratelimit;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceRateLimitProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+
+/**
+ * Limits the sends per destination and over all destinations, so a burst of
+ * requests is rejected right away instead of piling up sessions and
+ * connections on the broker. Each limit is an {@link AdaptiveRateLimiter},
+ * which lowers its rate when the sends get slow or fail and raises it again
+ * once they recover.
+ * <p>
+ * A send needs a permit of its destination and a global one. The callers
+ * report the outcome of every permitted send via
+ * {@link #sent(String, long, boolean)}, which drives the adjustment.
+ * <p>
+ * At most {@link MessagingServiceRateLimitProperties#getMaxDestinations()}
+ * destinations get an own limit. To make room for another one, the least
+ * recently used limit is dropped only if it is idle, i.e. its bucket is full
+ * and its rate is not lowered, so dropping it loses nothing. Otherwise the
+ * destination shares one limit with all other destinations beyond, so sending
+ * to ever new destinations can't get around the limits.
+ * <p>
+ * Does nothing unless {@link MessagingServiceRateLimitProperties#isEnabled()}.
+ */
+@Component
+public class SendRateLimiter {
+
+    public static final String SCOPE_GLOBAL = "global";
+    public static final String SCOPE_DESTINATION = "destination";
+
+    private final boolean enabled;
+    private final MessagingServiceRateLimitProperties properties;
+    private final MessagingMetrics metrics;
+    private final AdaptiveRateLimiter globalLimiter;
+    private final Map<String, AdaptiveRateLimiter> configuredLimiters = new HashMap<>();
+    private final Map<String, AdaptiveRateLimiter> limiters = new LinkedHashMap<>(16, 0.75f, true); // least recently used first
+    private final AdaptiveRateLimiter overflowLimiter; // destinations beyond maxDestinations
+
+    @Autowired
+    public SendRateLimiter(MessagingServiceRateLimitProperties properties, MessagingMetrics metrics) {
+        this.enabled = properties.isEnabled();
+        this.properties = properties;
+        this.metrics = metrics;
+        this.overflowLimiter = enabled && properties.getDestinationRate() > 0
+                ? new AdaptiveRateLimiter(properties.getDestinationRate(), properties) : null;
+        if (overflowLimiter != null) {
+            metrics.gauge("messaging.ratelimit.rate", overflowLimiter, AdaptiveRateLimiter::getRate, "scope", SCOPE_DESTINATION, "destination",
+                    "other");
+        }
+        this.globalLimiter = enabled && properties.getGlobalRate() > 0 ? new AdaptiveRateLimiter(properties.getGlobalRate(), properties) : null;
+        if (globalLimiter != null) {
+            metrics.gauge("messaging.ratelimit.rate", globalLimiter, AdaptiveRateLimiter::getRate, "scope", SCOPE_GLOBAL, "destination", "all");
+        }
+        if (enabled) {
+            properties.getDestinations().forEach((destinationName, rate) -> {
+                if (rate != null && rate > 0) {
+                    AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(rate, properties);
+                    configuredLimiters.put(destinationName, limiter);
+                    metrics.gauge("messaging.ratelimit.rate", limiter, AdaptiveRateLimiter::getRate, "scope", SCOPE_DESTINATION, "destination",
+                            destinationName);
+                }
+            });
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Takes a permit of the destination and a global one.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @return 0 if the message may be sent, otherwise the time in milliseconds
+     *         after which the client should try again
+     */
+    public long tryAcquire(String destinationName) {
+        if (!enabled) {
+            return 0;
+        }
+        AdaptiveRateLimiter limiter = getLimiter(destinationName, true);
+        if (limiter != null) {
+            long wait = limiter.tryAcquire();
+            if (wait > 0) {
+                metrics.rateLimited(destinationName, SCOPE_DESTINATION);
+                return toMillis(wait);
+            }
+        }
+        if (globalLimiter != null) {
+            long wait = globalLimiter.tryAcquire();
+            if (wait > 0) {
+                if (limiter != null) {
+                    limiter.release();
+                }
+                metrics.rateLimited(destinationName, SCOPE_GLOBAL);
+                return toMillis(wait);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gives back the permits of a send which did not happen, e.g. because the
+     * transaction it belongs to is rejected.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     */
+    public void release(String destinationName) {
+        if (!enabled) {
+            return;
+        }
+        AdaptiveRateLimiter limiter = getLimiter(destinationName, false);
+        if (limiter != null) {
+            limiter.release();
+        }
+        if (globalLimiter != null) {
+            globalLimiter.release();
+        }
+    }
+
+    /**
+     * Reports the outcome of a send which got a permit.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param start
+     *            start of the send, see {@link MessagingMetrics#start()}
+     * @param success
+     *            false if the send failed
+     */
+    public void sent(String destinationName, long start, boolean success) {
+        if (!enabled) {
+            return;
+        }
+        long latency = System.nanoTime() - start;
+        AdaptiveRateLimiter limiter = getLimiter(destinationName, false);
+        if (limiter != null) {
+            limiter.record(latency, success);
+        }
+        if (globalLimiter != null) {
+            globalLimiter.record(latency, success);
+        }
+    }
+
+    /**
+     * @param create
+     *            true to give the destination an own limit if there is room
+     * @return the limit of the destination or null if it is unlimited
+     */
+    private AdaptiveRateLimiter getLimiter(String destinationName, boolean create) {
+        AdaptiveRateLimiter limiter = configuredLimiters.get(destinationName);
+        if (limiter != null || properties.getDestinationRate() <= 0 || properties.getDestinations().containsKey(destinationName)) {
+            return limiter;
+        }
+        synchronized (limiters) {
+            limiter = limiters.get(destinationName);
+            if (limiter != null) {
+                return limiter;
+            }
+            if (!create || (limiters.size() >= properties.getMaxDestinations() && !dropIdleLimiter())) {
+                return overflowLimiter;
+            }
+            limiter = new AdaptiveRateLimiter(properties.getDestinationRate(), properties);
+            limiters.put(destinationName, limiter);
+            return limiter;
+        }
+    }
+
+    /**
+     * @return true if the least recently used limit was idle and has been
+     *         dropped
+     */
+    private boolean dropIdleLimiter() {
+        Iterator<AdaptiveRateLimiter> iterator = limiters.values().iterator();
+        if (iterator.hasNext() && iterator.next().isIdle()) {
+            iterator.remove();
+            return true;
+        }
+        return false;
+    }
+
+    private static long toMillis(long nanos) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+}
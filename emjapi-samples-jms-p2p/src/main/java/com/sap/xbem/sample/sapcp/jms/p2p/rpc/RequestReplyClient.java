@@ -0,0 +1,372 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.rpc;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.sap.cloud.servicesdk.xbem.extension.sapcp.jms.MessagingServiceJmsConnectionFactory;
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCompressor;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceRequestReplyProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.consumer.MessageBodies;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.DestinationFactory;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.MessagingServiceConnectionPool;
+import com.sap.xbem.sample.sapcp.jms.p2p.ratelimit.SendRateLimiter;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Sends requests and waits for their replies (request-reply over queues). A
+ * request is sent on a pooled session with {@code JMSReplyTo} set to the reply
+ * queue and a unique {@code JMSCorrelationID}. The responder is expected to
+ * send its reply to {@code JMSReplyTo} with the same
+ * {@code JMSCorrelationID}.
+ * <p>
+ * All requests share one reply consumer, which runs on its own connection and
+ * hands each reply to the waiting request by its correlation ID. So a request
+ * costs a send and a map lookup, not a consumer of its own. The consumer is
+ * started with the first request, outside of any lock: concurrent requests
+ * wait for the same start instead of queuing up behind it, as the connections
+ * of the {@link MessagingServiceConnectionPool} are opened. If its connection
+ * fails, the waiting requests fail and the next request starts a new consumer.
+ * <p>
+ * The correlation IDs start with a prefix which is unique per instance. On a
+ * configured reply queue, which several instances may share, the consumer
+ * selects only the replies with its own prefix.
+ * <p>
+ * Replies which arrive after their request timed out are dropped.
+ */
+@Component
+public class RequestReplyClient implements ExceptionListener, DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestReplyClient.class);
+    private static final String QUEUE_PREFIX = "queue:"; // mandatory prefix for connection to a queue
+
+    private final ConnectionFactory connectionFactory;
+    private final MessagingServiceConnectionPool connectionPool;
+    private final MessagingServiceRequestReplyProperties properties;
+    private final MessagingMetrics metrics;
+    private final MessageCompressor compressor;
+    private final SendRateLimiter rateLimiter;
+    private final Map<String, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger(); // reserved before a request is registered
+    private final String correlationPrefix = UUID.randomUUID() + "-"; // unique per instance, selects the replies on a named reply queue
+    private final AtomicLong correlationCounter = new AtomicLong();
+    private final Object monitor = new Object();
+    private Connection connection;
+    private Destination replyTo;
+    private CompletableFuture<Destination> opening; // while the consumer is started
+    private boolean openingFailed; // the connection failed while the consumer was started
+    private boolean closed;
+
+    @Autowired
+    public RequestReplyClient(MessagingServiceJmsConnectionFactory connectionFactory, MessagingServiceConnectionPool connectionPool,
+            MessagingServiceRequestReplyProperties properties, MessagingMetrics metrics, MessageCompressor compressor, SendRateLimiter rateLimiter) {
+        this.connectionFactory = connectionFactory;
+        this.connectionPool = connectionPool;
+        this.properties = properties;
+        this.metrics = metrics;
+        this.compressor = compressor;
+        this.rateLimiter = rateLimiter;
+        metrics.gauge("messaging.request.pending", this, RequestReplyClient::getPending);
+    }
+
+    /**
+     * The caller takes a permit of the {@link SendRateLimiter} before. The
+     * outcome of the send is reported to it, or the permit is given back if
+     * the request is rejected or cancelled before it is sent. The send runs on
+     * {@link Schedulers#boundedElastic()}, as it may wait for a pooled session.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param destinationFactory
+     *            creates the destination, e.g. {@code Session::createQueue}
+     * @param payload
+     *            request body
+     * @param timeout
+     *            time in milliseconds to wait for the reply
+     * @return completes with the body of the reply, fails with a
+     *         {@link TimeoutException} if no reply arrived in time or with a
+     *         {@link RejectedExecutionException} if too many requests are
+     *         waiting
+     */
+    public Mono<String> request(String destinationName, DestinationFactory destinationFactory, byte[] payload, long timeout) {
+        return Mono.defer(() -> {
+            long start = metrics.start();
+            AtomicBoolean permitTaken = new AtomicBoolean(); // by the send, or given back if it never runs
+            return Mono.<String> create(sink -> {
+                if (permitTaken.compareAndSet(false, true)) {
+                    send(sink, destinationName, destinationFactory, payload);
+                }
+            })
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .timeout(Duration.ofMillis(timeout))
+                    .doOnSuccess(reply -> metrics.received(destinationName, MessagingMetrics.OPERATION_REQUEST, start, true))
+                    .doOnError(e -> metrics.received(destinationName, MessagingMetrics.OPERATION_REQUEST, start, false))
+                    .doFinally(signal -> {
+                        if (permitTaken.compareAndSet(false, true)) {
+                            rateLimiter.release(destinationName); // timed out or cancelled before the send
+                        }
+                    });
+        });
+    }
+
+    private void send(MonoSink<String> sink, String destinationName, DestinationFactory destinationFactory, byte[] payload) {
+        if (pending.incrementAndGet() > properties.getMaxPending()) {
+            pending.decrementAndGet();
+            rateLimiter.release(destinationName); // not sent
+            sink.error(new RejectedExecutionException("Too many requests wait for a reply, limit=" + properties.getMaxPending()));
+            return;
+        }
+        String correlationId = correlationPrefix + correlationCounter.incrementAndGet();
+        // registered before the send, the reply may arrive before send returns
+        pendingRequests.put(correlationId, new PendingRequest(sink, destinationName));
+        sink.onDispose(() -> removePending(correlationId)); // also on timeout and error
+        long start = metrics.start();
+        try {
+            Destination replyDestination = getReplyTo();
+            connectionPool.execute(pooledSession -> {
+                BytesMessage byteMessage = compressor.createMessage(pooledSession.getSession(), destinationName, payload);
+                byteMessage.setJMSReplyTo(replyDestination);
+                byteMessage.setJMSCorrelationID(correlationId);
+                MessageProducer producer = pooledSession.getProducer(destinationName, destinationFactory);
+                long sendStart = metrics.start();
+                try {
+                    producer.send(byteMessage);
+                    metrics.sent(destinationName, MessagingMetrics.OPERATION_REQUEST, sendStart, payload.length, true);
+                } catch (JMSException | RuntimeException e) {
+                    metrics.sent(destinationName, MessagingMetrics.OPERATION_REQUEST, sendStart, payload.length, false);
+                    throw e;
+                }
+                return null;
+            });
+            rateLimiter.sent(destinationName, start, true);
+        } catch (JMSException | RuntimeException e) {
+            rateLimiter.sent(destinationName, start, false);
+            sink.error(e);
+        }
+    }
+
+    /**
+     * @return number of requests which wait for their reply
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Called by the client if the connection of the reply consumer failed.
+     */
+    @Override
+    public void onException(JMSException exception) {
+        LOG.warn("Connection of the reply consumer failed, the next request starts a new one.", exception);
+        Connection failedConnection;
+        synchronized (monitor) {
+            failedConnection = connection;
+            connection = null;
+            replyTo = null;
+            openingFailed = opening != null; // may be the connection which is being started
+        }
+        if (failedConnection != null) {
+            // not closed within the callback of the connection
+            Schedulers.boundedElastic().schedule(() -> closeQuietly(failedConnection));
+        }
+        failPending(exception);
+    }
+
+    @Override
+    public void destroy() {
+        Connection openConnection;
+        synchronized (monitor) {
+            closed = true;
+            openConnection = connection;
+            connection = null;
+            replyTo = null;
+        }
+        if (openConnection != null) {
+            closeQuietly(openConnection);
+        }
+        failPending(new IllegalStateException("The request-reply client has been closed."));
+    }
+
+    /**
+     * Returns the reply destination, the first caller starts the consumer
+     * and the others wait for it.
+     */
+    private Destination getReplyTo() throws JMSException {
+        CompletableFuture<Destination> started;
+        boolean starter = false;
+        synchronized (monitor) {
+            if (closed) {
+                throw new IllegalStateException("The request-reply client has been closed.");
+            }
+            if (replyTo != null) {
+                return replyTo;
+            }
+            started = opening;
+            if (started == null) {
+                started = new CompletableFuture<>();
+                opening = started;
+                openingFailed = false;
+                starter = true;
+            }
+        }
+        if (starter) {
+            connect(started);
+        }
+        return awaitReplyTo(started);
+    }
+
+    private void connect(CompletableFuture<Destination> started) {
+        Connection newConnection = null;
+        Destination destination = null;
+        Exception failure = null;
+        try {
+            newConnection = connectionFactory.createConnection();
+            newConnection.setExceptionListener(this);
+            Session session = newConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            String replyQueue = properties.getReplyQueue();
+            destination = replyQueue == null || replyQueue.isEmpty() ? session.createTemporaryQueue()
+                    : session.createQueue(QUEUE_PREFIX + replyQueue);
+            // a named queue may be shared with other instances, their replies are left to them
+            String selector = destination instanceof TemporaryQueue ? null : "JMSCorrelationID LIKE '" + correlationPrefix + "%'";
+            session.createConsumer(destination, selector).setMessageListener(this::onReply);
+            newConnection.start();
+        } catch (JMSException | RuntimeException e) {
+            failure = e;
+        }
+        synchronized (monitor) {
+            opening = null;
+            if (failure == null && closed) {
+                failure = new IllegalStateException("The request-reply client has been closed.");
+            } else if (failure == null && openingFailed) {
+                failure = new JMSException("The connection of the reply consumer failed while it was started.");
+            }
+            if (failure == null) {
+                connection = newConnection;
+                replyTo = destination;
+            }
+        }
+        if (failure != null) {
+            if (newConnection != null) {
+                closeQuietly(newConnection);
+            }
+            started.completeExceptionally(failure);
+        } else {
+            LOG.info("Started reply consumer on {}.", destination);
+            started.complete(destination);
+        }
+    }
+
+    private static Destination awaitReplyTo(CompletableFuture<Destination> started) throws JMSException {
+        try {
+            return started.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JMSException("Interrupted while waiting for the reply consumer.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof JMSException) {
+                throw (JMSException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            JMSException jmsException = new JMSException("Could not start the reply consumer.");
+            jmsException.setLinkedException(e);
+            throw jmsException;
+        }
+    }
+
+    private void onReply(Message message) {
+        String correlationId;
+        try {
+            correlationId = message.getJMSCorrelationID();
+        } catch (JMSException e) {
+            LOG.warn("Dropping reply without readable correlationId.", e);
+            return;
+        }
+        PendingRequest request = correlationId != null ? removePending(correlationId) : null;
+        if (request == null) {
+            LOG.debug("Dropping reply with correlationId={}, its request timed out or is unknown.", correlationId);
+            return;
+        }
+        try {
+            String body = MessageBodies.getBody(message);
+            metrics.receivedPayload(request.destinationName, MessageBodies.getBodyLength(message, body));
+            request.sink.success(body);
+        } catch (JMSException | RuntimeException e) {
+            request.sink.error(e);
+        }
+    }
+
+    private void failPending(Exception exception) {
+        List<String> correlationIds = new ArrayList<>(pendingRequests.keySet());
+        for (String correlationId : correlationIds) {
+            PendingRequest request = removePending(correlationId);
+            if (request != null) {
+                request.sink.error(exception);
+            }
+        }
+    }
+
+    /**
+     * Removes a request and gives back its reservation. Only the caller which
+     * removed the request gets it, so a reservation is given back once.
+     */
+    private PendingRequest removePending(String correlationId) {
+        PendingRequest request = pendingRequests.remove(correlationId);
+        if (request != null) {
+            pending.decrementAndGet();
+        }
+        return request;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (JMSException e) {
+            LOG.debug("Could not close the reply connection.", e);
+        }
+    }
+
+    private static class PendingRequest {
+
+        private final MonoSink<String> sink;
+        private final String destinationName;
+
+        PendingRequest(MonoSink<String> sink, String destinationName) {
+            this.sink = sink;
+            this.destinationName = destinationName;
+        }
+    }
+}
@@ -1,31 +1,68 @@
 package com.sap.xbem.sample.sapcp.jms.p2p.services;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.jms.BytesMessage;
-import javax.jms.Connection;
+import javax.jms.InvalidDestinationException;
 import javax.jms.JMSException;
 import javax.jms.MessageConsumer;
+import javax.jms.MessageFormatException;
 import javax.jms.MessageProducer;
 import javax.jms.Queue;
 import javax.jms.Session;
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sap.cloud.servicesdk.xbem.core.exception.MessagingException;
-import com.sap.cloud.servicesdk.xbem.extension.sapcp.jms.MessagingServiceJmsConnectionFactory;
+import com.sap.xbem.sample.sapcp.jms.p2p.async.AsyncMessageSender;
+import com.sap.xbem.sample.sapcp.jms.p2p.batch.BatchSendResult;
+import com.sap.xbem.sample.sapcp.jms.p2p.batch.MessageBatchReader;
+import com.sap.xbem.sample.sapcp.jms.p2p.batch.MessageBatchSender;
+import com.sap.xbem.sample.sapcp.jms.p2p.binary.BinaryMessageTransfer;
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCodec;
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCompressor;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceBatchProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServicePoolProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceReceiveProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceRequestReplyProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceStreamProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.consumer.MessageBatchReceiver;
+import com.sap.xbem.sample.sapcp.jms.p2p.consumer.MessageStreamer;
+import com.sap.xbem.sample.sapcp.jms.p2p.dedup.MessageDeduplicator;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.LruCache;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.MessagingServiceConnectionPool;
+import com.sap.xbem.sample.sapcp.jms.p2p.ratelimit.SendRateLimiter;
+import com.sap.xbem.sample.sapcp.jms.p2p.rpc.RequestReplyClient;
+import com.sap.xbem.sample.sapcp.jms.p2p.spool.MessageSpool;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 @RestController(MessagingServiceRestController.ROOT_PATH)
 public class MessagingServiceRestController {
@@ -34,17 +71,66 @@ public class MessagingServiceRestController {
     public static final String ROOT_PATH = "/";
     private static final String QUEUE_PATH = "queue/{queueName}";
     private static final String MESSAGE_PATH = "/message";
+    private static final String MESSAGES_PATH = "/messages";
+    private static final String ASYNC_PATH = "/async";
+    private static final String STREAM_PATH = "/stream";
+    private static final String BINARY_PATH = "/binary";
+    private static final String REQUEST_PATH = "/request";
     private static final String ENCODED_PATH = "encode";
     private static final String MESSAGE_REST_PATH = QUEUE_PATH + MESSAGE_PATH;
+    private static final String MESSAGES_REST_PATH = QUEUE_PATH + MESSAGES_PATH;
+    private static final String MESSAGE_ASYNC_REST_PATH = MESSAGE_REST_PATH + ASYNC_PATH;
+    private static final String MESSAGE_BINARY_REST_PATH = MESSAGE_REST_PATH + BINARY_PATH;
+    private static final String MESSAGES_STREAM_REST_PATH = MESSAGES_REST_PATH + STREAM_PATH;
+    private static final String REQUEST_REST_PATH = QUEUE_PATH + REQUEST_PATH;
     private static final String MESSAGE_ENCODING_REST_PATH = ENCODED_PATH;
 
     private static final String QUEUE_PREFIX = "queue:"; // mandatory prefix for connection to a queue. Note that you must not create a queue on the broker with this prefix
 
-    private final MessagingServiceJmsConnectionFactory connectionFactory;
+    private final MessagingServiceConnectionPool connectionPool;
+    private final Map<String, String> decodedValues; // the same few destination names are decoded over and over again
+    private final MessageBatchSender batchSender;
+    private final MessagingServiceBatchProperties batchProperties;
+    private final ObjectMapper objectMapper;
+    private final AsyncMessageSender asyncSender;
+    private final MessageStreamer messageStreamer;
+    private final MessagingServiceStreamProperties streamProperties;
+    private final MessageBatchReceiver batchReceiver;
+    private final MessagingServiceReceiveProperties receiveProperties;
+    private final BinaryMessageTransfer binaryTransfer;
+    private final MessagingMetrics metrics;
+    private final MessageSpool messageSpool;
+    private final MessageCompressor compressor;
+    private final SendRateLimiter rateLimiter;
+    private final MessageDeduplicator deduplicator;
+    private final RequestReplyClient requestReplyClient;
+    private final MessagingServiceRequestReplyProperties requestReplyProperties;
 
     @Autowired
-    private MessagingServiceRestController(MessagingServiceJmsConnectionFactory messagingServiceJmsConnectionFactory) {
-        this.connectionFactory = messagingServiceJmsConnectionFactory;
+    private MessagingServiceRestController(MessagingServiceConnectionPool messagingServiceConnectionPool, MessagingServicePoolProperties poolProperties,
+            MessageBatchSender messageBatchSender, MessagingServiceBatchProperties batchProperties, ObjectMapper objectMapper,
+            AsyncMessageSender asyncMessageSender, MessageStreamer messageStreamer, MessagingServiceStreamProperties streamProperties,
+            MessageBatchReceiver messageBatchReceiver, MessagingServiceReceiveProperties receiveProperties, BinaryMessageTransfer binaryMessageTransfer,
+            MessagingMetrics messagingMetrics, MessageSpool messageSpool, MessageCompressor messageCompressor, SendRateLimiter sendRateLimiter,
+            MessageDeduplicator messageDeduplicator, RequestReplyClient requestReplyClient, MessagingServiceRequestReplyProperties requestReplyProperties) {
+        this.connectionPool = messagingServiceConnectionPool;
+        this.decodedValues = Collections.synchronizedMap(new LruCache<>(poolProperties.getDestinationNameCacheSize()));
+        this.batchSender = messageBatchSender;
+        this.batchProperties = batchProperties;
+        this.objectMapper = objectMapper;
+        this.asyncSender = asyncMessageSender;
+        this.messageStreamer = messageStreamer;
+        this.streamProperties = streamProperties;
+        this.batchReceiver = messageBatchReceiver;
+        this.receiveProperties = receiveProperties;
+        this.binaryTransfer = binaryMessageTransfer;
+        this.metrics = messagingMetrics;
+        this.messageSpool = messageSpool;
+        this.compressor = messageCompressor;
+        this.rateLimiter = sendRateLimiter;
+        this.deduplicator = messageDeduplicator;
+        this.requestReplyClient = requestReplyClient;
+        this.requestReplyProperties = requestReplyProperties;
     }
 
     /**
@@ -63,7 +149,12 @@ public class MessagingServiceRestController {
 
     /**
      * Send a message to a queue. The queue must be created via e.G. the
-     * Dashboard of the enterprise-messaging-service first.
+     * Dashboard of the enterprise-messaging-service first. If the spool is
+     * enabled and the broker can't be reached, the message is spooled and sent
+     * later on, then the response status is 202. Answers 404 if the broker
+     * doesn't know the queue, 503 if it can't be reached and the message could
+     * not be spooled. Answers 429 with a Retry-After header if the rate limit
+     * of the queue is exceeded.
      * 
      * @param message
      * @param queueName
@@ -79,31 +170,250 @@ public class MessagingServiceRestController {
         }
 
         LOG.info("Sending message={} to queue={}", message, queueName);
-        try (Connection connection = connectionFactory.createConnection();
-                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
-            connection.start();
-            BytesMessage byteMessage = session.createBytesMessage();
-            byteMessage.writeBytes(message.getBytes());
-            Queue queue = session.createQueue(QUEUE_PREFIX + queueName); // even though the JMS API is "createQueue" the queue will not be created on the message broker
-            MessageProducer producer = session.createProducer(queue);
-            producer.send(byteMessage);
-            return ResponseEntity.status(HttpStatus.CREATED).body("message=" + message + " sent to queue=" + queueName);
+        String destinationName = queueName;
+        long retryAfter = rateLimiter.tryAcquire(QUEUE_PREFIX + destinationName);
+        if (retryAfter > 0) {
+            return tooManyRequests(retryAfter, "Too many messages for queue=" + destinationName);
+        }
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        // spooled messages are sent first, later messages must not overtake them
+        if (messageSpool.spoolIfPending(QUEUE_PREFIX + destinationName, payload)) {
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body("message=" + message + " spooled for queue=" + destinationName);
+        }
+        long sendStart = metrics.start();
+        try {
+            // the session is borrowed from the pool, the connection is shared and stays open
+            ResponseEntity<String> response = connectionPool.execute(pooledSession -> {
+                // the body is compressed if configured for the queue, see messaging.compression
+                BytesMessage byteMessage = compressor.createMessage(pooledSession.getSession(), QUEUE_PREFIX + destinationName, payload);
+                // the queue and producer are cached per session. Even though the JMS API is "createQueue" the queue will not be created on the message broker
+                MessageProducer producer = pooledSession.getProducer(QUEUE_PREFIX + destinationName, Session::createQueue);
+                long start = metrics.start();
+                try {
+                    producer.send(byteMessage);
+                    metrics.sent(QUEUE_PREFIX + destinationName, MessagingMetrics.OPERATION_SYNC, start, payload.length, true);
+                } catch (JMSException | RuntimeException e) {
+                    metrics.sent(QUEUE_PREFIX + destinationName, MessagingMetrics.OPERATION_SYNC, start, payload.length, false);
+                    throw e;
+                }
+                return ResponseEntity.status(HttpStatus.CREATED).body("message=" + message + " sent to queue=" + destinationName);
+            });
+            rateLimiter.sent(QUEUE_PREFIX + destinationName, sendStart, true);
+            return response;
         } catch (JMSException e) {
+            rateLimiter.sent(QUEUE_PREFIX + destinationName, sendStart, false);
+            if (messageSpool.spoolIfUnreachable(QUEUE_PREFIX + destinationName, payload, e)) {
+                LOG.warn("Could not send message={}, it has been spooled. Error={}", message, e.toString());
+                return ResponseEntity.status(HttpStatus.ACCEPTED).body("message=" + message + " spooled for queue=" + destinationName);
+            }
             LOG.error("Could not send message={}.", message, e);
+            return ResponseEntity.status(sendFailureStatus(e)).body("Could not send message. Error=" + e);
+        }
+    }
+
+    /**
+     * Send a message to a queue without blocking the request thread until the
+     * broker confirmed it. The response is written once the confirmation
+     * arrived. If too many sends are unconfirmed the request is rejected with
+     * status 503, above the rate limit of the queue with status 429.
+     * 
+     * @param message
+     * @param queueName
+     * @return the message and the queue which has been sent
+     */
+    @PostMapping(MESSAGE_ASYNC_REST_PATH)
+    public Mono<ResponseEntity<String>> sendMessageAsync(@RequestBody String message, @PathVariable String queueName) {
+        String destinationName;
+        try {
+            destinationName = decodeValue(queueName);
+        } catch (UnsupportedEncodingException e1) {
+            return Mono.just(ResponseEntity.badRequest().body("Unable to decode the queuename"));
+        }
+
+        long retryAfter = rateLimiter.tryAcquire(QUEUE_PREFIX + destinationName);
+        if (retryAfter > 0) {
+            return Mono.just(tooManyRequests(retryAfter, "Too many messages for queue=" + destinationName));
+        }
+
+        LOG.debug("Sending message={} asynchronously to queue={}", message, destinationName);
+        long start = metrics.start();
+        return asyncSender.send(QUEUE_PREFIX + destinationName, Session::createQueue, message.getBytes(StandardCharsets.UTF_8))
+                .doOnSuccess(v -> rateLimiter.sent(QUEUE_PREFIX + destinationName, start, true))
+                .doOnError(e -> rateLimiter.sent(QUEUE_PREFIX + destinationName, start, false))
+                .thenReturn(ResponseEntity.status(HttpStatus.CREATED).body("message=" + message + " sent to queue=" + destinationName))
+                .onErrorResume(RejectedExecutionException.class, e -> Mono.just(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage())))
+                .onErrorResume(e -> {
+                    LOG.error("Could not send message={}.", message, e);
+                    return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Could not send message. Error=" + e));
+                });
+    }
+
+    /**
+     * Send a request to a queue and wait for the reply. The request carries
+     * JMSReplyTo and JMSCorrelationID, the responder has to send the reply to
+     * JMSReplyTo with the same JMSCorrelationID. Answers 504 if no reply arrived
+     * within the timeout, 503 if too many requests are waiting and 429 above the
+     * rate limit of the queue.
+     * 
+     * @param message
+     *            request body
+     * @param queueName
+     *            queue of the responder
+     * @param timeout
+     *            optional, overrides messaging.request-reply.timeout
+     * @return the body of the reply
+     */
+    @PostMapping(REQUEST_REST_PATH)
+    public Mono<ResponseEntity<String>> request(@RequestBody String message, @PathVariable String queueName,
+            @RequestParam(required = false) Long timeout) {
+        String destinationName;
+        try {
+            destinationName = decodeValue(queueName);
+        } catch (UnsupportedEncodingException e1) {
+            return Mono.just(ResponseEntity.badRequest().body("Unable to decode the queuename"));
+        }
+
+        long retryAfter = rateLimiter.tryAcquire(QUEUE_PREFIX + destinationName);
+        if (retryAfter > 0) {
+            return Mono.just(tooManyRequests(retryAfter, "Too many messages for queue=" + destinationName));
+        }
+
+        LOG.debug("Sending request={} to queue={}", message, destinationName);
+        return requestReplyClient.request(QUEUE_PREFIX + destinationName, Session::createQueue, message.getBytes(StandardCharsets.UTF_8),
+                timeout != null ? timeout : requestReplyProperties.getTimeout())
+                .map(reply -> ResponseEntity.ok(reply))
+                .onErrorResume(TimeoutException.class, e -> Mono.just(ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT).body("No reply from queue=" + destinationName)))
+                .onErrorResume(RejectedExecutionException.class, e -> Mono.just(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage())))
+                .onErrorResume(e -> {
+                    LOG.error("Could not send request={} to queue={}.", message, destinationName, e);
+                    return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Could not send request. Error=" + e));
+                });
+    }
+
+    /**
+     * Send the request body as is to a queue. The body is copied into the
+     * message in chunks, without converting it to a string. A body sent with
+     * {@code Content-Encoding} gzip or lz4 is stored compressed as it is,
+     * answers 400 if it does not start with the header of that codec. Answers
+     * 429 if the rate limit of the queue is exceeded.
+     * 
+     * @param body
+     *            message body, any content
+     * @param queueName
+     * @param contentEncoding
+     *            optional, codec the body is compressed with
+     * @return the number of bytes which have been sent
+     */
+    @PostMapping(path = MESSAGE_BINARY_REST_PATH, consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<String> sendBinaryMessage(InputStream body, @PathVariable String queueName,
+            @RequestHeader(name = HttpHeaders.CONTENT_ENCODING, required = false) String contentEncoding) {
+        try {
+            queueName = decodeValue(queueName);
+        } catch (UnsupportedEncodingException e1) {
+            return ResponseEntity.badRequest().body("Unable to decode the queuename");
+        }
+        MessageCodec bodyCodec = MessageCodec.forName(contentEncoding);
+        if (bodyCodec == null) {
+            return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE).body("Unsupported Content-Encoding=" + contentEncoding);
+        }
+
+        long retryAfter = rateLimiter.tryAcquire(QUEUE_PREFIX + queueName);
+        if (retryAfter > 0) {
+            return tooManyRequests(retryAfter, "Too many messages for queue=" + queueName);
+        }
+
+        long start = metrics.start();
+        try {
+            long length = binaryTransfer.send(QUEUE_PREFIX + queueName, Session::createQueue, body, bodyCodec);
+            rateLimiter.sent(QUEUE_PREFIX + queueName, start, true);
+            LOG.info("Sent binary message of {} bytes to queue={}", length, queueName);
+            return ResponseEntity.status(HttpStatus.CREATED).body(length + " bytes sent to queue=" + queueName);
+        } catch (MessageFormatException e) {
+            rateLimiter.release(QUEUE_PREFIX + queueName); // not sent
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (JMSException | IOException e) {
+            if (e instanceof JMSException) { // a broken request body says nothing about the broker
+                rateLimiter.sent(QUEUE_PREFIX + queueName, start, false);
+            }
+            LOG.error("Could not send binary message to queue={}.", queueName, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Could not send message. Error=" + e);
         }
     }
 
     /**
-     * Receives a message from a queue. The rest call will block until a message
-     * is received.
+     * Sends a JSON array of messages to a queue. The messages are sent on a
+     * transacted session which is committed every batchSize messages or every
+     * batchInterval milliseconds, whichever comes first.
+     * 
+     * @param body
+     *            JSON array of messages, strings are sent as is
+     * @param queueName
+     * @param batchSize
+     *            optional, overrides messaging.batch.size
+     * @param batchInterval
+     *            optional, overrides messaging.batch.interval
+     * @return the counts per transaction and the offsets which could not be
+     *         sent
+     */
+    @PostMapping(path = MESSAGES_REST_PATH, consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> sendMessages(InputStream body, @PathVariable String queueName, @RequestParam(required = false) Integer batchSize,
+            @RequestParam(required = false) Long batchInterval) {
+        return sendBatch(body, true, queueName, batchSize, batchInterval);
+    }
+
+    /**
+     * Same as {@link #sendMessages(InputStream, String, Integer, Long)} for a
+     * body with one JSON value per line (NDJSON).
+     */
+    @PostMapping(path = MESSAGES_REST_PATH, consumes = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<?> sendMessagesNdjson(InputStream body, @PathVariable String queueName, @RequestParam(required = false) Integer batchSize,
+            @RequestParam(required = false) Long batchInterval) {
+        return sendBatch(body, false, queueName, batchSize, batchInterval);
+    }
+
+    private ResponseEntity<?> sendBatch(InputStream body, boolean array, String queueName, Integer batchSize, Long batchInterval) {
+        try {
+            queueName = decodeValue(queueName);
+        } catch (UnsupportedEncodingException e1) {
+            return ResponseEntity.badRequest().body("Unable to decode the queuename");
+        }
+
+        LOG.info("Sending batch to queue={}", queueName);
+        try (MessageBatchReader reader = new MessageBatchReader(objectMapper, body, array)) {
+            BatchSendResult result = batchSender.send(QUEUE_PREFIX + queueName, Session::createQueue, reader,
+                    batchSize != null ? batchSize : batchProperties.getSize(), batchInterval != null ? batchInterval : batchProperties.getInterval());
+            LOG.info("Sent batch to queue={}, sent={}, failed={}", queueName, result.getSent(), result.getFailed());
+            return ResponseEntity.status(batchStatus(result)).body(result);
+        } catch (JMSException | IOException e) {
+            LOG.error("Could not send batch to queue={}.", queueName, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Could not send messages. Error=" + e);
+        }
+    }
+
+    private HttpStatus batchStatus(BatchSendResult result) {
+        if (result.getError() != null) {
+            return HttpStatus.BAD_REQUEST;
+        }
+        if (result.getFailed() == 0) {
+            return HttpStatus.CREATED;
+        }
+        return result.getSent() > 0 ? HttpStatus.MULTI_STATUS : HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * Receives a message from a queue. The rest call blocks until a message is
+     * received or answers 204 if none arrived in time.
      * 
      * @param queueName
+     * @param waitMs
+     *            optional, time in milliseconds to wait for a message,
+     *            overrides messaging.receive.message-wait-time
      * @return the message which has been received
      * @throws MessagingException
      */
     @GetMapping(MESSAGE_REST_PATH)
-    public ResponseEntity<String> receiveMessage(@PathVariable String queueName) throws MessagingException {
+    public ResponseEntity<String> receiveMessage(@PathVariable String queueName, @RequestParam(required = false) Long waitMs)
+            throws MessagingException {
         try {
             queueName = decodeValue(queueName);
         } catch (UnsupportedEncodingException e1) {
@@ -111,29 +421,207 @@ public class MessagingServiceRestController {
         }
 
         /*
-         * create the connection and the session, don't forget to close those
-         * resources if you're not using autoclosable
+         * the session is borrowed from the pool and handed back afterwards, only
+         * the consumer has to be closed
          * 
-         * you can also switch the acknowledgment mode in the session to e.G.
-         * Session.CLIENT_ACKNOWLEDGE. Remember to acknowledge the message by
-         * yourself then: byteMessage.acknowledge().
+         * the session acknowledges by client: the message is acknowledged once
+         * its body has been read. If that fails, the pool closes the session and
+         * the broker delivers the message again.
          */
-        try (Connection connection = connectionFactory.createConnection();
-                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE)) { // see comments above
-            connection.start();
-            Queue queue = session.createQueue(QUEUE_PREFIX + queueName); // see comments above
-            MessageConsumer consumer = session.createConsumer(queue);
-            BytesMessage message = (BytesMessage) consumer.receive(); // Blocking call. You can either define a timeout or use a message listener
-            byte[] byteData = new byte[(int) message.getBodyLength()];
-            message.readBytes(byteData);
-            return ResponseEntity.ok(new String(byteData));
+        String destinationName = queueName;
+        long waitTime = waitMs != null ? waitMs : receiveProperties.getMessageWaitTime();
+        try {
+            return connectionPool.executeReceive(Session.CLIENT_ACKNOWLEDGE, pooledSession -> { // see comments above
+                Session session = pooledSession.getSession();
+                Queue queue = session.createQueue(QUEUE_PREFIX + destinationName); // see comments above
+                try (MessageConsumer consumer = session.createConsumer(queue)) {
+                    long deadline = System.currentTimeMillis() + waitTime;
+                    BytesMessage message;
+                    boolean duplicate;
+                    do {
+                        long remaining = deadline - System.currentTimeMillis();
+                        long start = metrics.start();
+                        try {
+                            // waits at most until the deadline, the pooled session is held meanwhile
+                            message = (BytesMessage) (remaining > 0 ? consumer.receive(remaining) : consumer.receiveNoWait());
+                            metrics.received(QUEUE_PREFIX + destinationName, MessagingMetrics.OPERATION_SYNC, start, true);
+                        } catch (JMSException | RuntimeException e) {
+                            metrics.received(QUEUE_PREFIX + destinationName, MessagingMetrics.OPERATION_SYNC, start, false);
+                            throw e;
+                        }
+                        if (message == null) {
+                            return ResponseEntity.noContent().<String> build();
+                        }
+                        duplicate = !deduplicator.claim(QUEUE_PREFIX + destinationName, message);
+                        if (duplicate) {
+                            acknowledge(message, QUEUE_PREFIX + destinationName); // already processed, drop it
+                        }
+                    } while (duplicate);
+                    try {
+                        metrics.receivedPayload(QUEUE_PREFIX + destinationName, message.getBodyLength());
+                        byte[] byteData = MessageCodec.readBody(message); // decompressed if needed
+                        acknowledge(message, QUEUE_PREFIX + destinationName);
+                        deduplicator.processed(QUEUE_PREFIX + destinationName, message);
+                        return ResponseEntity.ok(new String(byteData, StandardCharsets.UTF_8));
+                    } catch (JMSException | RuntimeException e) {
+                        deduplicator.release(QUEUE_PREFIX + destinationName, message);
+                        throw e;
+                    }
+                }
+            });
         } catch (JMSException e) {
             LOG.error("Could not receive message.", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Could not receive message. Error=" + e);
         }
     }
 
+    /**
+     * Receives a message from a queue and writes its body as is to the
+     * response. The body is copied in chunks and the message is acknowledged
+     * after it has been written. Answers 204 if no message arrived in time. A
+     * compressed body is written as it is if the client accepts its codec,
+     * otherwise it is decompressed.
+     * 
+     * @param queueName
+     * @param waitMs
+     *            optional, time in milliseconds to wait for a message,
+     *            overrides messaging.receive.wait-time
+     * @param acceptEncoding
+     *            optional, codecs the client can decompress
+     * @param response
+     * @throws IOException
+     */
+    @GetMapping(path = MESSAGE_BINARY_REST_PATH, produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void receiveBinaryMessage(@PathVariable String queueName, @RequestParam(required = false) Long waitMs,
+            @RequestHeader(name = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding, HttpServletResponse response)
+            throws IOException {
+        try {
+            queueName = decodeValue(queueName);
+        } catch (UnsupportedEncodingException e1) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "Unable to decode the queuename");
+            return;
+        }
+
+        try {
+            boolean received = binaryTransfer.receive(QUEUE_PREFIX + queueName, Session::createQueue,
+                    waitMs != null ? waitMs : receiveProperties.getWaitTime(), acceptEncoding, (length, codec) -> {
+                        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+                        if (codec != MessageCodec.NONE) {
+                            response.setHeader(HttpHeaders.CONTENT_ENCODING, codec.getName());
+                        }
+                        if (length >= 0) {
+                            response.setContentLengthLong(length);
+                        }
+                        return response.getOutputStream();
+                    });
+            if (!received) {
+                response.setStatus(HttpStatus.NO_CONTENT.value());
+            }
+        } catch (JMSException | IOException e) {
+            LOG.error("Could not receive binary message from queue={}.", queueName, e);
+            if (!response.isCommitted()) {
+                response.sendError(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Could not receive message. Error=" + e);
+            }
+        }
+    }
+
+    /**
+     * Receives up to max messages from a queue with one consumer and returns
+     * them as JSON array. The messages are acknowledged together after the
+     * array has been written.
+     * 
+     * @param queueName
+     * @param max
+     *            optional, maximum number of messages, overrides
+     *            messaging.receive.max-messages
+     * @param waitMs
+     *            optional, time in milliseconds to wait for messages, overrides
+     *            messaging.receive.wait-time
+     * @return the messages which have been received, possibly none
+     */
+    @GetMapping(path = MESSAGES_REST_PATH, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> receiveMessages(@PathVariable String queueName, @RequestParam(required = false) Integer max,
+            @RequestParam(required = false) Long waitMs) {
+        try {
+            queueName = decodeValue(queueName);
+        } catch (UnsupportedEncodingException e1) {
+            return ResponseEntity.badRequest().body("Unable to decode the queuename");
+        }
+        int maxMessages = max != null ? max : receiveProperties.getMaxMessages();
+        if (maxMessages < 1 || maxMessages > receiveProperties.getMaxMessagesLimit()) {
+            return ResponseEntity.badRequest().body("max must be between 1 and " + receiveProperties.getMaxMessagesLimit());
+        }
+
+        try {
+            byte[] messages = batchReceiver.receive(QUEUE_PREFIX + queueName, Session::createQueue, maxMessages,
+                    waitMs != null ? waitMs : receiveProperties.getWaitTime());
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(messages);
+        } catch (JMSException | IOException e) {
+            LOG.error("Could not receive messages from queue={}.", queueName, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Could not receive messages. Error=" + e);
+        }
+    }
+
+    /**
+     * Streams the messages of a queue as server-sent events or as NDJSON,
+     * depending on the Accept header. A single consumer stays attached until
+     * one of the limits is reached or the client disconnects.
+     * 
+     * @param queueName
+     * @param timeout
+     *            optional, time in milliseconds without a message after which
+     *            the stream ends, overrides messaging.stream.receive-timeout
+     * @param max
+     *            optional, number of messages after which the stream ends,
+     *            overrides messaging.stream.max-messages
+     * @param prefetch
+     *            optional, number of messages the broker sends ahead, overrides
+     *            messaging.stream.prefetch
+     * @return the stream of messages
+     */
+    @GetMapping(path = MESSAGES_STREAM_REST_PATH, produces = { MediaType.TEXT_EVENT_STREAM_VALUE, MediaType.APPLICATION_NDJSON_VALUE })
+    public ResponseEntity<Flux<String>> streamMessages(@PathVariable String queueName, @RequestParam(required = false) Long timeout,
+            @RequestParam(required = false) Integer max, @RequestParam(required = false) Integer prefetch) {
+        try {
+            queueName = decodeValue(queueName);
+        } catch (UnsupportedEncodingException e1) {
+            return ResponseEntity.badRequest().body(Flux.just("Unable to decode the queuename"));
+        }
+
+        return ResponseEntity.ok(messageStreamer.stream(queueName, timeout != null ? timeout : streamProperties.getReceiveTimeout(),
+                max != null ? max : streamProperties.getMaxMessages(), prefetch != null ? prefetch : streamProperties.getPrefetch()));
+    }
+
     private String decodeValue(String value) throws UnsupportedEncodingException {
-        return URLDecoder.decode(value, StandardCharsets.UTF_8.toString());
+        String decodedValue = decodedValues.get(value);
+        if (decodedValue == null) {
+            decodedValue = URLDecoder.decode(value, StandardCharsets.UTF_8.toString());
+            decodedValues.put(value, decodedValue);
+        }
+        return decodedValue;
+    }
+
+    private void acknowledge(BytesMessage message, String destinationName) throws JMSException {
+        long start = metrics.start();
+        try {
+            message.acknowledge();
+            metrics.acknowledged(destinationName, MessagingMetrics.OPERATION_SYNC, start, true);
+        } catch (JMSException | RuntimeException e) {
+            metrics.acknowledged(destinationName, MessagingMetrics.OPERATION_SYNC, start, false);
+            throw e;
+        }
+    }
+
+    private HttpStatus sendFailureStatus(JMSException e) {
+        if (e instanceof InvalidDestinationException) {
+            return HttpStatus.NOT_FOUND;
+        }
+        return connectionPool.isUnreachable(e) ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    // Retry-After is given in whole seconds
+    private static <T> ResponseEntity<T> tooManyRequests(long retryAfterMillis, T body) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(TimeUnit.MILLISECONDS.toSeconds(retryAfterMillis + 999))).body(body);
     }
 }
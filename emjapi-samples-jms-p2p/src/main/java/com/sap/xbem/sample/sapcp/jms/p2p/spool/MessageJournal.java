@@ -0,0 +1,463 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.spool;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of messages on local disk. The journal is split into
+ * segment files of a fixed size which are memory-mapped while they are in use.
+ * <p>
+ * Every record is laid out as {@code int length | int crc32 | short
+ * destination length | destination (UTF-8) | body}, where the length and the
+ * checksum cover everything after the checksum. New segments are filled with
+ * zeros, so a length of {@code 0} marks the end of the written data.
+ * <p>
+ * An append is forced to disk before it returns. Records are read from the
+ * oldest segment on; once they have been handled, {@link #remove(List)} moves
+ * the read position and stores it in a checkpoint file. Segments which have
+ * been read completely are deleted, the last one as well, so an emptied
+ * journal starts over with a new segment. When the journal is opened, the segments
+ * are scanned and writing continues after the last record with a valid
+ * checksum, so a record torn by a crash is dropped.
+ * <p>
+ * The journal is thread safe. Records must be read and removed by one thread
+ * only.
+ */
+public class MessageJournal implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageJournal.class);
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int HEADER_SIZE = 8; // length and checksum
+    private static final int CHECKPOINT_SIZE = 16; // segment id, offset and checksum
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxSegments;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Deque<Segment> segments = new ArrayDeque<>(); // oldest first, records are appended to the last one
+    private long nextSegmentId;
+    private int readOffset; // within the first segment
+    private volatile long pendingMessages;
+    private volatile long pendingBytes;
+    private final Map<String, Long> pendingByDestination = new ConcurrentHashMap<>(); // updated under the lock
+    private boolean closed;
+
+    /**
+     * Opens the journal in the directory and recovers the records which have
+     * not been removed yet.
+     *
+     * @param directory
+     *            directory of the segment files, created if missing
+     * @param segmentSize
+     *            size in bytes of a segment file
+     * @param maxSize
+     *            maximum size in bytes of all segment files
+     * @throws IOException
+     *             if the directory or the files can't be accessed
+     */
+    public MessageJournal(Path directory, int segmentSize, long maxSize) throws IOException {
+        if (segmentSize <= HEADER_SIZE + 2) {
+            throw new IllegalArgumentException("The segment size must be larger than " + (HEADER_SIZE + 2) + " bytes.");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSize / segmentSize);
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Appends a message and forces it to disk.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param body
+     *            message body
+     * @return {@code false} if the journal is full
+     * @throws IOException
+     *             if the journal is closed or the segment could not be written
+     * @throws IllegalArgumentException
+     *             if the message doesn't fit into one segment
+     */
+    public boolean append(String destinationName, byte[] body) throws IOException {
+        byte[] destination = destinationName.getBytes(StandardCharsets.UTF_8);
+        if (destination.length > 0xFFFF) {
+            throw new IllegalArgumentException("The destination name is too long.");
+        }
+        int length = 2 + destination.length + body.length;
+        if (length < 0 || length > segmentSize - HEADER_SIZE) {
+            throw new IllegalArgumentException("Message of " + body.length + " bytes does not fit into a journal segment of " + segmentSize + " bytes.");
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("The journal is closed.");
+            }
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.getRemaining() < HEADER_SIZE + length) {
+                if (segments.size() >= maxSegments) {
+                    return false;
+                }
+                segment = Segment.open(segmentPath(nextSegmentId), nextSegmentId, segmentSize);
+                nextSegmentId++;
+                segments.addLast(segment);
+            }
+            int position = segment.writePosition;
+            ByteBuffer record = segment.buffer.duplicate();
+            ((Buffer) record).position(position + HEADER_SIZE);
+            record.putShort((short) destination.length);
+            record.put(destination);
+            record.put(body);
+            segment.buffer.putInt(position + 4, checksum(segment.buffer, position + HEADER_SIZE, length));
+            segment.buffer.putInt(position, length);
+            segment.buffer.force();
+            segment.writePosition = position + HEADER_SIZE + length;
+            pendingMessages++;
+            pendingBytes += length;
+            pendingByDestination.merge(destinationName, 1L, Long::sum);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the oldest records without removing them.
+     *
+     * @param maxRecords
+     *            maximum number of records to read
+     * @return the records in the order they were appended, empty if there are
+     *         none
+     */
+    public List<Record> read(int maxRecords) {
+        lock.lock();
+        try {
+            List<Record> records = new ArrayList<>(Math.min(maxRecords, 1024));
+            Iterator<Segment> iterator = segments.iterator();
+            Segment segment = iterator.hasNext() ? iterator.next() : null;
+            int offset = readOffset;
+            while (segment != null && records.size() < maxRecords) {
+                if (offset >= segment.writePosition) {
+                    segment = iterator.hasNext() ? iterator.next() : null;
+                    offset = 0;
+                    continue;
+                }
+                ByteBuffer buffer = segment.buffer.duplicate();
+                int length = buffer.getInt(offset);
+                ((Buffer) buffer).position(offset + HEADER_SIZE);
+                byte[] destination = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(destination);
+                byte[] body = new byte[length - 2 - destination.length];
+                buffer.get(body);
+                offset += HEADER_SIZE + length;
+                records.add(new Record(new String(destination, StandardCharsets.UTF_8), destination.length, body, segment.id, offset));
+            }
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes records returned by {@link #read(int)}. The records must be the
+     * oldest ones in the journal.
+     *
+     * @param records
+     *            records which have been handled
+     * @throws IOException
+     *             if the checkpoint could not be written
+     */
+    public void remove(List<Record> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        Record last = records.get(records.size() - 1);
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("The journal is closed.");
+            }
+            writeCheckpoint(last.segmentId, last.nextOffset);
+            while (segments.size() > 1 && segments.peekFirst().id < last.segmentId) {
+                segments.pollFirst().delete();
+            }
+            readOffset = last.nextOffset;
+            Segment first = segments.peekFirst();
+            if (first != null && readOffset >= first.writePosition) {
+                // the next append opens a new segment if this was the last one
+                segments.pollFirst().delete();
+                readOffset = 0;
+            }
+            long bytes = 0;
+            for (Record record : records) {
+                bytes += 2 + record.destinationLength + record.body.length;
+                pendingByDestination.computeIfPresent(record.destinationName, (destinationName, pending) -> pending > 1 ? pending - 1 : null);
+            }
+            pendingMessages -= records.size();
+            pendingBytes -= bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return pendingMessages == 0;
+    }
+
+    /**
+     * @return number of messages which have not been removed yet
+     */
+    public long getPendingMessages() {
+        return pendingMessages;
+    }
+
+    /**
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @return number of messages for the destination which have not been
+     *         removed yet
+     */
+    public long getPendingMessages(String destinationName) {
+        return pendingByDestination.getOrDefault(destinationName, 0L);
+    }
+
+    /**
+     * @return size in bytes of the records which have not been removed yet
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            segments.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recover() throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), path);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring unexpected file {} in the journal directory.", path);
+                }
+            }
+        }
+        long[] checkpoint = readCheckpoint();
+        if (checkpoint != null) {
+            nextSegmentId = checkpoint[0] + 1; // its segment may have been deleted already, new ones must not be taken as read
+        }
+        for (Map.Entry<Long, Path> file : files.entrySet()) {
+            long id = file.getKey();
+            Path path = file.getValue();
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+            if (checkpoint != null && id < checkpoint[0]) {
+                Files.deleteIfExists(path); // read completely before the last shutdown
+                continue;
+            }
+            Segment segment = Segment.open(path, id, segmentSize);
+            segments.addLast(segment);
+            int from = checkpoint != null && id == checkpoint[0] ? (int) checkpoint[1] : 0;
+            segment.writePosition = scan(segment, from, id == files.lastKey());
+            if (segments.size() == 1) {
+                readOffset = Math.min(from, segment.writePosition);
+            }
+        }
+        LOG.info("Opened journal in {} with {} pending messages.", directory.toAbsolutePath(), pendingMessages);
+    }
+
+    /**
+     * Counts the valid records of a segment from the given offset on and
+     * returns the offset after the last one.
+     */
+    private int scan(Segment segment, int from, boolean last) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position <= buffer.capacity() - HEADER_SIZE) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < 2 || length > buffer.capacity() - position - HEADER_SIZE
+                    || buffer.getInt(position + 4) != checksum(buffer, position + HEADER_SIZE, length)) {
+                LOG.warn("Dropping torn record at offset={} of {} and all records after it.", position, segment.path);
+                if (last) {
+                    // clear the rest, so that the garbage can't be mistaken for a record later on
+                    for (int i = position; i < buffer.capacity(); i++) {
+                        buffer.put(i, (byte) 0);
+                    }
+                    buffer.force();
+                }
+                break;
+            }
+            if (position >= from) {
+                byte[] destination = new byte[buffer.getShort(position + HEADER_SIZE) & 0xFFFF];
+                ByteBuffer record = buffer.duplicate();
+                ((Buffer) record).position(position + HEADER_SIZE + 2);
+                record.get(destination);
+                pendingMessages++;
+                pendingBytes += length;
+                pendingByDestination.merge(new String(destination, StandardCharsets.UTF_8), 1L, Long::sum);
+            }
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private long[] readCheckpoint() throws IOException {
+        Path path = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length != CHECKPOINT_SIZE || buffer.getInt(12) != checksum(buffer, 0, 12)) {
+            LOG.warn("Ignoring invalid checkpoint {}, all records will be replayed.", path);
+            return null;
+        }
+        return new long[] { buffer.getLong(0), buffer.getInt(8) };
+    }
+
+    private void writeCheckpoint(long segmentId, int offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SIZE);
+        buffer.putLong(0, segmentId);
+        buffer.putInt(8, offset);
+        buffer.putInt(12, checksum(buffer, 0, 12));
+        Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer data = buffer.duplicate();
+        // through Buffer, ByteBuffer only overrides these methods since Java 9
+        ((Buffer) data).limit(offset + length);
+        ((Buffer) data).position(offset);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A message read from the journal.
+     */
+    public static class Record {
+
+        private final String destinationName;
+        private final int destinationLength;
+        private final byte[] body;
+        private final long segmentId;
+        private final int nextOffset;
+
+        Record(String destinationName, int destinationLength, byte[] body, long segmentId, int nextOffset) {
+            this.destinationName = destinationName;
+            this.destinationLength = destinationLength;
+            this.body = body;
+            this.segmentId = segmentId;
+            this.nextOffset = nextOffset;
+        }
+
+        public String getDestinationName() {
+            return destinationName;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    private static class Segment {
+
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+
+        private Segment(long id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Maps an existing segment with its size, a new one is created with the
+         * given size.
+         */
+        static Segment open(Path path, long id, int size) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                long existing = channel.size();
+                int capacity = existing > 0 ? (int) Math.min(existing, Integer.MAX_VALUE) : size;
+                return new Segment(id, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        int getRemaining() {
+            return buffer.capacity() - writePosition;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close journal segment {}.", path, e);
+            }
+        }
+
+        void delete() {
+            close();
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOG.warn("Could not delete journal segment {}.", path, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MessageCodecTest {
+
+    @After
+    public void tearDown() {
+        MessageCodec.setMaxDecompressedSize(MessageCodec.DEFAULT_MAX_DECOMPRESSED_SIZE);
+    }
+
+    @Test
+    public void recognizesHeaderOfCompressedData() throws IOException {
+        byte[] data = "{\"id\":1}".getBytes(StandardCharsets.UTF_8);
+        for (MessageCodec codec : MessageCodec.values()) {
+            byte[] compressed = codec.compress(data);
+            assertTrue(codec.name(), codec.hasHeader(compressed, compressed.length));
+            assertArrayEquals(codec.name(), data, codec.decompress(compressed));
+        }
+        assertFalse(MessageCodec.GZIP.hasHeader(data, data.length));
+        assertFalse(MessageCodec.LZ4.hasHeader(data, data.length));
+        assertFalse(MessageCodec.GZIP.hasHeader(new byte[] { 0x1f }, 1)); // too short
+        assertFalse(MessageCodec.LZ4.hasHeader(MessageCodec.GZIP.compress(data), 4));
+        assertTrue(MessageCodec.NONE.hasHeader(data, 0));
+    }
+
+    @Test
+    public void rejectsBodiesWhichDecompressBeyondMaximumSize() throws IOException {
+        byte[] zeros = new byte[1024 * 1024];
+        MessageCodec.setMaxDecompressedSize(zeros.length);
+        for (MessageCodec codec : new MessageCodec[] { MessageCodec.GZIP, MessageCodec.LZ4 }) {
+            assertArrayEquals(zeros, codec.decompress(codec.compress(zeros))); // exactly the maximum
+
+            byte[] bomb = codec.compress(new byte[zeros.length + 1]);
+            assertTrue(bomb.length < 10 * 1024);
+            try {
+                codec.decompress(bomb);
+                fail(codec.name());
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.dedup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class FingerprintSetTest {
+
+    @Test
+    public void dropsOldestFingerprintOnceFull() {
+        FingerprintSet set = new FingerprintSet(3);
+        set.add(1);
+        set.add(2);
+        set.add(3);
+        set.add(2); // already in the set, doesn't move
+        set.add(4);
+
+        assertFalse(set.contains(1));
+        assertTrue(set.contains(2));
+        assertTrue(set.contains(3));
+        assertTrue(set.contains(4));
+        assertEquals(3, set.size());
+    }
+
+    @Test
+    public void findsProbeSequencesWhichWrapAroundTheTable() {
+        // capacity 4 gives a table of 8 slots, 7, 15 and 23 all start in the last one
+        FingerprintSet set = new FingerprintSet(4);
+        set.add(7);
+        set.add(15);
+        set.add(23);
+        assertTrue(set.contains(7));
+        assertTrue(set.contains(15));
+        assertTrue(set.contains(23));
+        assertFalse(set.contains(31));
+
+        set.remove(7); // moves 15 back across the end of the table
+        assertFalse(set.contains(7));
+        assertTrue(set.contains(15));
+        assertTrue(set.contains(23));
+
+        set.remove(15);
+        assertTrue(set.contains(23));
+        set.add(7);
+        assertTrue(set.contains(7));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void keepsFingerprintWhichIsAddedAgainAfterRemove() {
+        FingerprintSet set = new FingerprintSet(3);
+        set.add(1);
+        set.add(2);
+        set.remove(1);
+        assertEquals(1, set.size());
+        set.add(1); // the removed place in the order must not evict it
+        set.add(3);
+
+        assertTrue(set.contains(1));
+        assertTrue(set.contains(2));
+        assertTrue(set.contains(3));
+        assertEquals(3, set.size());
+
+        set.add(4);
+        assertFalse(set.contains(2));
+        assertTrue(set.contains(1));
+    }
+
+    @Test
+    public void acceptsZeroFingerprint() {
+        FingerprintSet set = new FingerprintSet(2);
+        assertFalse(set.contains(0));
+        set.add(0);
+        assertTrue(set.contains(0));
+        set.remove(0);
+        assertFalse(set.contains(0));
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    public void holdsOnlyAddedFingerprintsUnderRandomUpdates() {
+        FingerprintSet set = new FingerprintSet(64);
+        Set<Long> added = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long fingerprint = random.nextInt(256) * 0x100000001L; // equal halves, many collisions
+            if (random.nextInt(3) == 0) {
+                set.remove(fingerprint);
+                added.remove(fingerprint);
+            } else {
+                set.add(fingerprint);
+                added.add(fingerprint);
+                assertTrue(set.contains(fingerprint));
+            }
+            if (i % 1000 == 0) {
+                int contained = 0;
+                for (long candidate = 0; candidate < 256; candidate++) {
+                    if (set.contains(candidate * 0x100000001L)) {
+                        assertTrue(added.contains(candidate * 0x100000001L));
+                        contained++;
+                    }
+                }
+                assertEquals(contained, set.size());
+                assertTrue(set.size() <= 64);
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.dedup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceDedupProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceMetricsProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class MessageDeduplicatorTest {
+
+    private static final String DESTINATION = "queue:q";
+
+    private MeterRegistry registry;
+    private MessagingServiceDedupProperties properties;
+
+    @Before
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        properties = new MessagingServiceDedupProperties();
+        properties.setEnabled(true);
+        properties.setExpectedMessages(1000);
+        properties.setExactSize(100);
+    }
+
+    @Test
+    public void claimsEveryMessageWhenDisabled() throws JMSException {
+        properties.setEnabled(false);
+        MessageDeduplicator deduplicator = create();
+        Message message = message("ID:1", null);
+
+        assertTrue(deduplicator.claim(DESTINATION, message));
+        deduplicator.processed(DESTINATION, message);
+        assertTrue(deduplicator.claim(DESTINATION, message));
+    }
+
+    @Test
+    public void dropsMessageWhichIsClaimedOrProcessed() throws JMSException {
+        MessageDeduplicator deduplicator = create();
+        Message message = message("ID:1", null);
+
+        assertTrue(deduplicator.claim(DESTINATION, message));
+        assertFalse(deduplicator.claim(DESTINATION, message)); // e.g. twice in a batch
+        assertEquals(0, deduplicator.getExactSize());
+
+        deduplicator.processed(DESTINATION, message);
+        assertFalse(deduplicator.claim(DESTINATION, message("ID:1", null)));
+        assertEquals(1, deduplicator.getExactSize());
+        assertEquals(1, deduplicator.getFilterSize());
+        assertEquals(2, duplicates("exact"), 0);
+    }
+
+    @Test
+    public void claimsReleasedMessageAgain() throws JMSException {
+        MessageDeduplicator deduplicator = create();
+        Message first = message("ID:1", null);
+        Message second = message("ID:2", null);
+        assertTrue(deduplicator.claim(DESTINATION, first));
+        assertTrue(deduplicator.claim(DESTINATION, second));
+
+        deduplicator.release(DESTINATION, Arrays.asList(first, second)); // processing failed, redelivered
+        assertTrue(deduplicator.claim(DESTINATION, first));
+        assertTrue(deduplicator.claim(DESTINATION, second));
+        assertEquals(0, deduplicator.getExactSize());
+    }
+
+    @Test
+    public void identifiesMessagesByDestinationAndKeyProperty() throws JMSException {
+        properties.setKeyProperty("orderId");
+        MessageDeduplicator deduplicator = create();
+
+        Message order = message("ID:1", "4711");
+        assertTrue(deduplicator.claim(DESTINATION, order));
+        deduplicator.processed(DESTINATION, order);
+
+        assertFalse(deduplicator.claim(DESTINATION, message("ID:2", "4711"))); // sent twice
+        assertTrue(deduplicator.claim("queue:other", message("ID:1", "4711")));
+        Message withoutKey = message("ID:3", null);
+        assertTrue(deduplicator.claim(DESTINATION, withoutKey));
+        deduplicator.processed(DESTINATION, withoutKey);
+        assertTrue(deduplicator.claim(DESTINATION, withoutKey)); // never dropped
+    }
+
+    @Test
+    public void findsDuplicateInFilterOnceExactTierDroppedIt() throws JMSException {
+        properties.setExactSize(2);
+        MessageDeduplicator deduplicator = create();
+        for (int i = 0; i < 3; i++) {
+            Message message = message("ID:" + i, null);
+            assertTrue(deduplicator.claim(DESTINATION, message));
+            deduplicator.processed(DESTINATION, message);
+        }
+        assertEquals(2, deduplicator.getExactSize());
+
+        assertFalse(deduplicator.claim(DESTINATION, message("ID:0", null)));
+        assertEquals(1, duplicates("filter"), 0);
+        assertEquals(0, duplicates("exact"), 0);
+    }
+
+    @Test
+    public void letsOnlyOneOfConcurrentConsumersClaim() throws Exception {
+        MessageDeduplicator deduplicator = create();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 100; round++) {
+                Message message = message("ID:" + round, null);
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Boolean>> claims = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    claims.add(executor.submit((Callable<Boolean>) () -> {
+                        start.await();
+                        return deduplicator.claim(DESTINATION, message);
+                    }));
+                }
+                start.countDown();
+                int claimed = 0;
+                for (Future<Boolean> claim : claims) {
+                    claimed += claim.get() ? 1 : 0;
+                }
+                assertEquals(1, claimed);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private MessageDeduplicator create() {
+        return new MessageDeduplicator(properties, new MessagingMetrics(registry, new MessagingServiceMetricsProperties()));
+    }
+
+    private double duplicates(String tier) {
+        return registry.get("messaging.dedup.duplicates").tag("tier", tier).functionCounter().count();
+    }
+
+    private static Message message(String messageId, String orderId) {
+        return (Message) Proxy.newProxyInstance(MessageDeduplicatorTest.class.getClassLoader(), new Class<?>[] { Message.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getJMSMessageID":
+                        return messageId;
+                    case "getStringProperty":
+                        return "orderId".equals(args[0]) ? orderId : null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,102 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.dedup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RotatingBloomFilterTest {
+
+    private static final long NO_WINDOW = Long.MAX_VALUE;
+
+    @Test
+    public void keepsFalsePositiveRateForExpectedHashes() {
+        RotatingBloomFilter filter = new RotatingBloomFilter(10000, 0.01, NO_WINDOW);
+        Random added = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            filter.put(added.nextLong(), added.nextLong());
+        }
+        added = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain(added.nextLong(), added.nextLong()));
+        }
+
+        Random other = new Random(2);
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain(other.nextLong(), other.nextLong())) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives=" + falsePositives, falsePositives < 2 * 100000 * 0.01);
+    }
+
+    @Test
+    public void sizesBitsForFalsePositiveRate() {
+        // -n * ln(p) / ln(2)^2 bits, about 9.6 per hash for 1%
+        assertEquals(2 * 1200, new RotatingBloomFilter(1000, 0.01, NO_WINDOW).getBytes(), 16);
+        assertEquals(2 * 64 / 8, new RotatingBloomFilter(1, 0.5, NO_WINDOW).getBytes()); // at least one word
+    }
+
+    @Test
+    public void forgetsHashesAfterTwoRotationsByCount() {
+        RotatingBloomFilter filter = new RotatingBloomFilter(100, 1e-6, NO_WINDOW);
+        putAll(filter, 0, 100); // full, the next access rotates
+        putAll(filter, 100, 199); // the first hashes are in the previous generation
+        assertEquals(199, filter.size());
+        assertTrue(containsAll(filter, 0, 199));
+
+        putAll(filter, 199, 299); // fills the generation and rotates again, which clears the first hashes
+        assertEquals(199, filter.size());
+        assertTrue(containsAll(filter, 100, 299));
+        assertFalse(containsAny(filter, 0, 100));
+    }
+
+    @Test
+    public void forgetsHashesAfterTwoWindows() throws InterruptedException {
+        RotatingBloomFilter filter = new RotatingBloomFilter(100, 1e-6, 50);
+        putAll(filter, 0, 1);
+        Thread.sleep(60);
+        putAll(filter, 1, 2); // rotates
+        assertTrue(containsAll(filter, 0, 2));
+
+        Thread.sleep(60);
+        assertFalse(containsAny(filter, 0, 1)); // the lookup rotates
+        assertTrue(containsAll(filter, 1, 2));
+    }
+
+    private static void putAll(RotatingBloomFilter filter, int from, int to) {
+        for (int i = from; i < to; i++) {
+            filter.put(hash1(i), hash2(i));
+        }
+    }
+
+    private static boolean containsAll(RotatingBloomFilter filter, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!filter.mightContain(hash1(i), hash2(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsAny(RotatingBloomFilter filter, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (filter.mightContain(hash1(i), hash2(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long hash1(int i) {
+        return new Random(i).nextLong();
+    }
+
+    private static long hash2(int i) {
+        return new Random(~i).nextLong();
+    }
+}
@@ -0,0 +1,178 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.spool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.JMSSecurityException;
+
+import org.apache.qpid.jms.exceptions.JmsConnectionFailedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCompressor;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceCompressionProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceMetricsProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServicePoolProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceSpoolProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.MessagingServiceConnectionPool;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Replays against a connection factory which fails every connection, either
+ * because the broker rejects it or because it can't be reached.
+ */
+public class MessageSpoolTest {
+
+    private static final String DESTINATION = "queue:q";
+    private static final int SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private MeterRegistry registry;
+    private MessagingServiceConnectionPool connectionPool;
+    private MessageSpool spool;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("spool").toPath();
+        registry = new SimpleMeterRegistry();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (spool != null) {
+            spool.destroy();
+        }
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
+    }
+
+    @Test
+    public void movesRejectedMessagesToDeadLettersInOrder() throws Exception {
+        spoolMessages("m0", "m1", "m2");
+        startSpool(new JMSSecurityException("not authorized"), 64L * 1024);
+
+        awaitGauge("messaging.spool.messages", 0);
+        assertEquals(3, gauge("messaging.spool.dead-letters"), 0);
+        spool.destroy();
+        spool = null;
+        try (MessageJournal deadLetters = new MessageJournal(directory.resolve("dead-letter"), SEGMENT_SIZE, SEGMENT_SIZE)) {
+            assertEquals(Arrays.asList("m0", "m1", "m2"), bodies(deadLetters.read(10)));
+            assertEquals(DESTINATION, deadLetters.read(1).get(0).getDestinationName());
+        }
+    }
+
+    @Test
+    public void dropsRejectedMessagesOnceDeadLettersAreFull() throws Exception {
+        byte[] body = new byte[SEGMENT_SIZE / 2];
+        spoolMessages(body, body, body);
+        startSpool(new JMSSecurityException("not authorized"), SEGMENT_SIZE); // room for one message
+
+        awaitGauge("messaging.spool.messages", 0);
+        assertEquals(1, gauge("messaging.spool.dead-letters"), 0);
+    }
+
+    @Test
+    public void keepsMessagesWhileBrokerIsUnreachable() throws Exception {
+        spoolMessages("m0", "m1");
+        startSpool(new JmsConnectionFailedException(new IOException("connection refused")), 64L * 1024);
+
+        Thread.sleep(300); // many replay attempts
+        assertEquals(2, gauge("messaging.spool.messages"), 0);
+        assertEquals(0, gauge("messaging.spool.dead-letters"), 0);
+    }
+
+    @Test
+    public void spoolsOnlyWhenBrokerIsUnreachable() throws Exception {
+        startSpool(new JmsConnectionFailedException(new IOException("connection refused")), 64L * 1024);
+
+        assertFalse(spool.spoolIfUnreachable(DESTINATION, bytes("m0"), new JMSSecurityException("not authorized")));
+        assertFalse(spool.spoolIfPending(DESTINATION, bytes("m0")));
+        assertTrue(spool.spoolIfUnreachable(DESTINATION, bytes("m0"), new JmsConnectionFailedException(new IOException("reset"))));
+        assertTrue(spool.spoolIfPending(DESTINATION, bytes("m1"))); // must not overtake m0
+        assertFalse(spool.spoolIfPending("queue:other", bytes("m2")));
+        assertEquals(2, gauge("messaging.spool.messages"), 0);
+    }
+
+    private void spoolMessages(String... bodies) throws IOException {
+        byte[][] payloads = new byte[bodies.length][];
+        for (int i = 0; i < bodies.length; i++) {
+            payloads[i] = bytes(bodies[i]);
+        }
+        spoolMessages(payloads);
+    }
+
+    /**
+     * Writes the journal before the spool starts, so the replay finds all
+     * messages at once.
+     */
+    private void spoolMessages(byte[]... payloads) throws IOException {
+        try (MessageJournal journal = new MessageJournal(directory, SEGMENT_SIZE, 64L * 1024)) {
+            for (byte[] payload : payloads) {
+                assertTrue(journal.append(DESTINATION, payload));
+            }
+        }
+    }
+
+    private void startSpool(JMSException failure, long deadLetterMaxSize) throws IOException {
+        MessagingMetrics metrics = new MessagingMetrics(registry, new MessagingServiceMetricsProperties());
+        ConnectionFactory connectionFactory = (ConnectionFactory) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ConnectionFactory.class }, (proxy, method, args) -> {
+                    throw failure;
+                });
+        connectionPool = new MessagingServiceConnectionPool(connectionFactory, new MessagingServicePoolProperties(), metrics);
+        MessagingServiceSpoolProperties properties = new MessagingServiceSpoolProperties();
+        properties.setEnabled(true);
+        properties.setDirectory(directory.toString());
+        properties.setSegmentSize(SEGMENT_SIZE);
+        properties.setMaxSize(64L * 1024);
+        properties.setDeadLetterMaxSize(deadLetterMaxSize);
+        properties.setReplayInterval(10);
+        properties.setMaxReplayAttempts(2);
+        spool = new MessageSpool(connectionPool, properties, metrics, new MessageCompressor(new MessagingServiceCompressionProperties(), metrics));
+    }
+
+    private double gauge(String name) {
+        return registry.get(name).gauge().value();
+    }
+
+    private void awaitGauge(String name, double value) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (gauge(name) != value && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(value, gauge(name), 0);
+    }
+
+    private static byte[] bytes(String body) {
+        return body.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> bodies(List<MessageJournal.Record> records) {
+        List<String> bodies = new ArrayList<>();
+        for (MessageJournal.Record record : records) {
+            bodies.add(new String(record.getBody(), StandardCharsets.UTF_8));
+        }
+        return bodies;
+    }
+}
@@ -0,0 +1,147 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.async;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import javax.jms.BytesMessage;
+import javax.jms.CompletionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCompressor;
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCompressor.EncodedBody;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceAsyncProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.DestinationFactory;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.MessagingServiceConnectionPool;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+/**
+ * Sends messages with the JMS 2.0 {@link CompletionListener}. The calling
+ * thread only hands the message over to the client, the returned {@link Mono}
+ * completes once the broker has confirmed the message. The session goes back to
+ * the pool right away, so a few threads can keep many sends in flight.
+ * <p>
+ * The number of unconfirmed sends is limited, the fan-out counts against the
+ * same limit. If the limit is reached, the returned {@link Mono} fails with a
+ * {@link RejectedExecutionException} instead of waiting.
+ */
+@Component
+public class AsyncMessageSender {
+
+    private final MessagingServiceConnectionPool connectionPool;
+    private final Semaphore inFlightPermits;
+    private final int maxInFlight;
+    private final MessagingMetrics metrics;
+    private final MessageCompressor compressor;
+
+    @Autowired
+    public AsyncMessageSender(MessagingServiceConnectionPool connectionPool, MessagingServiceAsyncProperties asyncProperties,
+            MessagingMetrics metrics, MessageCompressor compressor) {
+        this.connectionPool = connectionPool;
+        this.compressor = compressor;
+        this.metrics = metrics;
+        this.maxInFlight = asyncProperties.getMaxInFlight();
+        this.inFlightPermits = new Semaphore(maxInFlight);
+        metrics.gauge("messaging.async.in.flight", this, AsyncMessageSender::getInFlight);
+    }
+
+    /**
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param destinationFactory
+     *            creates the destination, e.g. {@code Session::createQueue}
+     * @param payload
+     *            message body
+     * @return completes when the broker confirmed the message
+     */
+    public Mono<Void> send(String destinationName, DestinationFactory destinationFactory, byte[] payload) {
+        return Mono.defer(() -> send(destinationName, destinationFactory, compressor.encode(destinationName, payload), payload.length,
+                MessagingMetrics.OPERATION_ASYNC));
+    }
+
+    /**
+     * Sends a body which has been encoded already, e.g. once for many
+     * destinations.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param destinationFactory
+     *            creates the destination, e.g. {@code Session::createQueue}
+     * @param body
+     *            encoded message body, it is not modified
+     * @param operation
+     *            operation the send is measured as, e.g.
+     *            {@link MessagingMetrics#OPERATION_FANOUT}
+     * @return completes when the broker confirmed the message
+     */
+    public Mono<Void> send(String destinationName, DestinationFactory destinationFactory, EncodedBody body, String operation) {
+        return send(destinationName, destinationFactory, body, body.getLength(), operation);
+    }
+
+    private Mono<Void> send(String destinationName, DestinationFactory destinationFactory, EncodedBody body, long bytes, String operation) {
+        return Mono.create(sink -> {
+            if (!inFlightPermits.tryAcquire()) {
+                sink.error(new RejectedExecutionException("Too many sends in flight, limit=" + maxInFlight));
+                return;
+            }
+            long start = metrics.start();
+            try {
+                connectionPool.execute(pooledSession -> {
+                    // a message must not be touched until its send is confirmed, so each one gets its own
+                    BytesMessage byteMessage = compressor.createMessage(pooledSession.getSession(), body);
+                    pooledSession.getProducer(destinationName, destinationFactory).send(byteMessage,
+                            new SinkCompletionListener(sink, destinationName, operation, start, bytes));
+                    return null;
+                });
+            } catch (JMSException | RuntimeException e) {
+                inFlightPermits.release(); // the listener is not called if send throws
+                metrics.sent(destinationName, operation, start, bytes, false);
+                sink.error(e);
+            }
+        });
+    }
+
+    /**
+     * @return number of sends which are not yet confirmed by the broker
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlightPermits.availablePermits();
+    }
+
+    private class SinkCompletionListener implements CompletionListener {
+
+        private final MonoSink<Void> sink;
+        private final String destinationName;
+        private final String operation;
+        private final long start;
+        private final long bytes;
+
+        SinkCompletionListener(MonoSink<Void> sink, String destinationName, String operation, long start, long bytes) {
+            this.sink = sink;
+            this.destinationName = destinationName;
+            this.operation = operation;
+            this.start = start;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void onCompletion(Message message) {
+            inFlightPermits.release();
+            metrics.sent(destinationName, operation, start, bytes, true);
+            sink.success();
+        }
+
+        @Override
+        public void onException(Message message, Exception exception) {
+            inFlightPermits.release();
+            metrics.sent(destinationName, operation, start, bytes, false);
+            sink.error(exception);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Response of a batch send. Offsets are the zero based positions of the
+ * messages within the request body.
+ */
+public class BatchSendResult {
+
+    private final String destination;
+    private final List<Batch> batches = new ArrayList<>();
+    private final List<Long> failedOffsets = new ArrayList<>();
+    private long received;
+    private long sent;
+    private String error;
+
+    public BatchSendResult(String destination) {
+        this.destination = destination;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getFailed() {
+        return failedOffsets.size();
+    }
+
+    public List<Batch> getBatches() {
+        return batches;
+    }
+
+    public List<Long> getFailedOffsets() {
+        return failedOffsets;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    void setReceived(long received) {
+        this.received = received;
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    void committed(long firstOffset, int count) {
+        batches.add(new Batch(firstOffset, count, true));
+        sent += count;
+    }
+
+    void rolledBack(long firstOffset, int count) {
+        batches.add(new Batch(firstOffset, count, false));
+        for (long offset = firstOffset; offset < firstOffset + count; offset++) {
+            failedOffsets.add(offset);
+        }
+    }
+
+    /**
+     * A single transaction.
+     */
+    public static class Batch {
+
+        private final long firstOffset;
+        private final int count;
+        private final boolean committed;
+
+        Batch(long firstOffset, int count, boolean committed) {
+            this.firstOffset = firstOffset;
+            this.count = count;
+            this.committed = committed;
+        }
+
+        public long getFirstOffset() {
+            return firstOffset;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public boolean isCommitted() {
+            return committed;
+        }
+    }
+}
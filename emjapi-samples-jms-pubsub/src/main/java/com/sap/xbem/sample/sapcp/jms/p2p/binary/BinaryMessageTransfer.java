@@ -0,0 +1,287 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.binary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.BytesMessageInputStream;
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCodec;
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCompressor;
+import com.sap.xbem.sample.sapcp.jms.p2p.dedup.MessageDeduplicator;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.BufferPool;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.DestinationFactory;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.MessagingServiceConnectionPool;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.PooledSession;
+
+/**
+ * Copies binary message bodies between HTTP streams and
+ * {@link BytesMessage}s. The bodies are neither converted to strings nor copied
+ * into an array of their full size, the data passes through a pooled buffer
+ * chunk by chunk.
+ * <p>
+ * Bodies are compressed with the codec of the destination, see
+ * {@link MessageCompressor}. A body which the client compressed already is
+ * sent as it is, once its start has been checked against the codec. On receive a compressed body is passed through if the client
+ * accepts its codec, otherwise it is decompressed on the fly. Messages which
+ * have been received before are acknowledged and skipped, see
+ * {@link MessageDeduplicator}.
+ * <p>
+ * Note that the JMS client still holds the complete body of a message in
+ * memory, as AMQP transfers a message as a whole.
+ */
+@Component
+public class BinaryMessageTransfer {
+
+    private final MessagingServiceConnectionPool connectionPool;
+    private final BufferPool bufferPool;
+    private final MessagingMetrics metrics;
+    private final MessageCompressor compressor;
+    private final MessageDeduplicator deduplicator;
+
+    @Autowired
+    public BinaryMessageTransfer(MessagingServiceConnectionPool connectionPool, BufferPool bufferPool, MessagingMetrics metrics,
+            MessageCompressor compressor, MessageDeduplicator deduplicator) {
+        this.connectionPool = connectionPool;
+        this.bufferPool = bufferPool;
+        this.metrics = metrics;
+        this.compressor = compressor;
+        this.deduplicator = deduplicator;
+    }
+
+    /**
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param destinationFactory
+     *            creates the destination, e.g. {@code Session::createQueue}
+     * @param body
+     *            message body, read until its end
+     * @param bodyCodec
+     *            codec the client compressed the body with, e.g. from the
+     *            {@code Content-Encoding} header
+     * @return number of bytes read from the body
+     * @throws MessageFormatException
+     *             if the body does not start with the header of bodyCodec
+     * @throws JMSException
+     *             if no session could be borrowed or the send failed
+     * @throws IOException
+     *             if the body could not be read
+     */
+    public long send(String destinationName, DestinationFactory destinationFactory, InputStream body, MessageCodec bodyCodec)
+            throws JMSException, IOException {
+        try (PooledSession pooledSession = connectionPool.borrowSession(Session.AUTO_ACKNOWLEDGE)) {
+            byte[] buffer = bufferPool.acquire();
+            try {
+                BytesMessage message = pooledSession.getSession().createBytesMessage();
+                long length;
+                if (bodyCodec == MessageCodec.NONE) {
+                    length = compressor.write(message, destinationName, body, buffer);
+                } else {
+                    message.setStringProperty(MessageCodec.PROPERTY, bodyCodec.getName());
+                    // a body which isn't what the client declared would only fail at the consumers
+                    length = readAtLeast(body, buffer, bodyCodec.getHeaderLength());
+                    if (!bodyCodec.hasHeader(buffer, (int) length)) {
+                        throw new MessageFormatException("The body is not compressed with Content-Encoding=" + bodyCodec.getName() + ".");
+                    }
+                    message.writeBytes(buffer, 0, (int) length);
+                    int read;
+                    while ((read = body.read(buffer)) != -1) {
+                        message.writeBytes(buffer, 0, read);
+                        length += read;
+                    }
+                }
+                send(pooledSession, destinationName, destinationFactory, message, length);
+                return length;
+            } catch (JMSException | RuntimeException e) {
+                pooledSession.invalidate();
+                throw e;
+            } finally {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Receives one message and copies its body to the target. The message is
+     * acknowledged after the body has been written, if writing fails it is
+     * redelivered.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param destinationFactory
+     *            creates the destination, e.g. {@code Session::createQueue}
+     * @param waitTime
+     *            maximum time in milliseconds to wait for a message
+     * @param acceptEncoding
+     *            codecs the client accepts, e.g. the {@code Accept-Encoding}
+     *            header, may be null
+     * @param target
+     *            opened once the length and codec of the body are known
+     * @return false if no message arrived within the wait time
+     * @throws JMSException
+     *             if no session could be borrowed, receiving failed or the
+     *             message is neither a bytes nor a text message
+     * @throws IOException
+     *             if the body could not be written
+     */
+    public boolean receive(String destinationName, DestinationFactory destinationFactory, long waitTime, String acceptEncoding,
+            BodyTarget target) throws JMSException, IOException {
+        try (PooledSession pooledSession = connectionPool.borrowReceiveSession(Session.CLIENT_ACKNOWLEDGE)) {
+            Session session = pooledSession.getSession();
+            try (MessageConsumer consumer = session.createConsumer(destinationFactory.create(session, destinationName))) {
+                long deadline = System.currentTimeMillis() + waitTime;
+                Message message = receive(consumer, destinationName, waitTime);
+                while (message != null && !deduplicator.claim(destinationName, message)) {
+                    acknowledge(message, destinationName);
+                    message = receive(consumer, destinationName, deadline - System.currentTimeMillis());
+                }
+                if (message == null) {
+                    return false;
+                }
+                try {
+                    write(message, destinationName, acceptEncoding, target);
+                    acknowledge(message, destinationName);
+                } catch (JMSException | IOException | RuntimeException e) {
+                    deduplicator.release(destinationName, message);
+                    throw e;
+                }
+                deduplicator.processed(destinationName, message);
+                return true;
+            } catch (JMSException | IOException | RuntimeException e) {
+                pooledSession.invalidate(); // closing the session makes the broker redeliver the message
+                throw e;
+            }
+        }
+    }
+
+    private void write(Message message, String destinationName, String acceptEncoding, BodyTarget target) throws JMSException, IOException {
+        if (message instanceof BytesMessage) {
+            BytesMessage bytesMessage = (BytesMessage) message;
+            metrics.receivedPayload(destinationName, bytesMessage.getBodyLength());
+            MessageCodec codec = MessageCodec.of(bytesMessage);
+            if (codec.isAccepted(acceptEncoding)) {
+                copy(bytesMessage, codec, target);
+            } else {
+                decompress(bytesMessage, codec, target);
+            }
+        } else if (message instanceof TextMessage) {
+            byte[] text = ((TextMessage) message).getText().getBytes(StandardCharsets.UTF_8);
+            metrics.receivedPayload(destinationName, text.length);
+            try (OutputStream output = target.open(text.length, MessageCodec.NONE)) {
+                output.write(text);
+            }
+        } else {
+            throw new MessageFormatException("Message " + message.getJMSMessageID() + " has no binary body.");
+        }
+    }
+
+    private Message receive(MessageConsumer consumer, String destinationName, long waitTime) throws JMSException {
+        long start = metrics.start();
+        try {
+            Message message = waitTime > 0 ? consumer.receive(waitTime) : consumer.receiveNoWait();
+            metrics.received(destinationName, MessagingMetrics.OPERATION_BINARY, start, true);
+            return message;
+        } catch (JMSException | RuntimeException e) {
+            metrics.received(destinationName, MessagingMetrics.OPERATION_BINARY, start, false);
+            throw e;
+        }
+    }
+
+    private void acknowledge(Message message, String destinationName) throws JMSException {
+        long start = metrics.start();
+        try {
+            message.acknowledge();
+            metrics.acknowledged(destinationName, MessagingMetrics.OPERATION_BINARY, start, true);
+        } catch (JMSException | RuntimeException e) {
+            metrics.acknowledged(destinationName, MessagingMetrics.OPERATION_BINARY, start, false);
+            throw e;
+        }
+    }
+
+    // reading the request body is not part of the measured send
+    private void send(PooledSession pooledSession, String destinationName, DestinationFactory destinationFactory, BytesMessage message, long length)
+            throws JMSException {
+        MessageProducer producer = pooledSession.getProducer(destinationName, destinationFactory);
+        long start = metrics.start();
+        try {
+            producer.send(message);
+            metrics.sent(destinationName, MessagingMetrics.OPERATION_BINARY, start, length, true);
+        } catch (JMSException | RuntimeException e) {
+            metrics.sent(destinationName, MessagingMetrics.OPERATION_BINARY, start, length, false);
+            throw e;
+        }
+    }
+
+    private void copy(BytesMessage message, MessageCodec codec, BodyTarget target) throws JMSException, IOException {
+        byte[] buffer = bufferPool.acquire();
+        try (OutputStream output = target.open(message.getBodyLength(), codec)) {
+            int read;
+            while ((read = message.readBytes(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * @return number of bytes read into the buffer, less than minimum only at
+     *         the end of the input
+     */
+    private static int readAtLeast(InputStream input, byte[] buffer, int minimum) throws IOException {
+        int length = 0;
+        do {
+            int read = input.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        } while (length < minimum);
+        return length;
+    }
+
+    // the decompressed length is not known before the end of the body
+    private void decompress(BytesMessage message, MessageCodec codec, BodyTarget target) throws IOException {
+        byte[] buffer = bufferPool.acquire();
+        try (InputStream input = codec.decompress(new BytesMessageInputStream(message));
+                OutputStream output = target.open(-1, MessageCodec.NONE)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Destination of a received message body, e.g. the HTTP response.
+     */
+    @FunctionalInterface
+    public interface BodyTarget {
+
+        /**
+         * @param length
+         *            length of the body in bytes, -1 if unknown
+         * @param codec
+         *            codec the body is compressed with
+         * @return stream the body is written to, closed afterwards
+         * @throws IOException
+         *             if the stream could not be opened
+         */
+        OutputStream open(long length, MessageCodec codec) throws IOException;
+    }
+}
@@ -0,0 +1,54 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MessageEOFException;
+
+/**
+ * Reads the body of a received {@link BytesMessage}.
+ */
+public class BytesMessageInputStream extends InputStream {
+
+    private final BytesMessage message;
+    private byte[] chunk = new byte[0]; // BytesMessage can only read to the start of an array
+
+    public BytesMessageInputStream(BytesMessage message) {
+        this.message = message;
+    }
+
+    @Override
+    public int read() throws IOException {
+        try {
+            return message.readUnsignedByte();
+        } catch (MessageEOFException e) {
+            return -1;
+        } catch (JMSException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        try {
+            if (off == 0) {
+                return message.readBytes(b, len);
+            }
+            if (chunk.length < len) {
+                chunk = new byte[len];
+            }
+            int read = message.readBytes(chunk, len);
+            if (read > 0) {
+                System.arraycopy(chunk, 0, b, off, read);
+            }
+            return read;
+        } catch (JMSException e) {
+            throw new IOException(e);
+        }
+    }
+}
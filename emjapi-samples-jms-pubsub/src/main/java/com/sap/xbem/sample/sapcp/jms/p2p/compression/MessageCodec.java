@@ -0,0 +1,289 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+/**
+ * Compression of message bodies. A compressed message carries the name of its
+ * codec in the property {@value #PROPERTY}, a message without the property is
+ * not compressed. The names are the ones of the HTTP {@code Content-Encoding}
+ * header, so a compressed body can be passed through to HTTP clients as it is.
+ * LZ4 uses the frame format, which the {@code lz4} command line tool reads as
+ * well.
+ * <p>
+ * A body which is decompressed into an array may grow to at most
+ * {@link #setMaxDecompressedSize(int) a maximum size}, so a small message can't
+ * fill the heap (decompression bomb).
+ */
+public enum MessageCodec {
+
+    NONE("identity", new byte[0]) {
+        @Override
+        public OutputStream compress(OutputStream output) {
+            return output;
+        }
+
+        @Override
+        public InputStream decompress(InputStream input) {
+            return input;
+        }
+    },
+
+    GZIP("gzip", new byte[] { 0x1f, (byte) 0x8b }) {
+        @Override
+        public OutputStream compress(OutputStream output) throws IOException {
+            return new GZIPOutputStream(output, 8192);
+        }
+
+        @Override
+        public InputStream decompress(InputStream input) throws IOException {
+            return new GZIPInputStream(input, 8192);
+        }
+    },
+
+    LZ4("lz4", new byte[] { 0x04, 0x22, 0x4d, 0x18 }) { // frame magic number, little endian
+        @Override
+        public OutputStream compress(OutputStream output) throws IOException {
+            // the default block size of 4MB would be allocated for every message
+            return new LZ4FrameOutputStream(output, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB);
+        }
+
+        @Override
+        public InputStream decompress(InputStream input) throws IOException {
+            return new LZ4FrameInputStream(input);
+        }
+    };
+
+    /**
+     * Message property naming the codec of the body.
+     */
+    public static final String PROPERTY = "contentEncoding";
+
+    /**
+     * Default of {@link #setMaxDecompressedSize(int)}.
+     */
+    public static final int DEFAULT_MAX_DECOMPRESSED_SIZE = 16 * 1024 * 1024;
+
+    private static final Pattern QVALUE = Pattern.compile("0(\\.\\d{0,3})?|1(\\.0{0,3})?");
+
+    private static volatile int maxDecompressedSize = DEFAULT_MAX_DECOMPRESSED_SIZE;
+
+    private final String name;
+    private final byte[] header;
+
+    MessageCodec(String name, byte[] header) {
+        this.name = name;
+        this.header = header;
+    }
+
+    /**
+     * @return the name used in the message property and in HTTP headers
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of bytes {@link #hasHeader(byte[], int)} needs
+     */
+    public int getHeaderLength() {
+        return header.length;
+    }
+
+    /**
+     * @param data
+     *            start of the compressed data
+     * @param length
+     *            number of valid bytes in data
+     * @return true if the data starts with the magic number of this codec,
+     *         always true for {@link #NONE}
+     */
+    public boolean hasHeader(byte[] data, int length) {
+        if (length < header.length) {
+            return false;
+        }
+        for (int i = 0; i < header.length; i++) {
+            if (data[i] != header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param output
+     *            receives the compressed data
+     * @return stream which compresses the data written to it, must be closed to
+     *         write the end of the compressed data
+     * @throws IOException
+     *             if the header could not be written
+     */
+    public abstract OutputStream compress(OutputStream output) throws IOException;
+
+    /**
+     * @param input
+     *            compressed data
+     * @return stream of the decompressed data
+     * @throws IOException
+     *             if the header could not be read
+     */
+    public abstract InputStream decompress(InputStream input) throws IOException;
+
+    public byte[] compress(byte[] data) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (OutputStream compressed = compress(output)) {
+            compressed.write(data);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * @throws IOException
+     *             if the data is invalid or decompresses to more than
+     *             {@link #setMaxDecompressedSize(int) the maximum size}
+     */
+    public byte[] decompress(byte[] data) throws IOException {
+        if (this == NONE) {
+            return data;
+        }
+        int maxSize = maxDecompressedSize;
+        ByteArrayOutputStream output = new ByteArrayOutputStream((int) Math.min(maxSize, data.length * 4L));
+        try (InputStream input = decompress(new ByteArrayInputStream(data))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                if (read > maxSize - output.size()) {
+                    throw new IOException("The body decompresses to more than " + maxSize + " bytes.");
+                }
+                output.write(buffer, 0, read);
+            }
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Limits the bodies decompressed by {@link #decompress(byte[])} and
+     * {@link #readBody(BytesMessage)}, set from the configuration by the
+     * {@link MessageCompressor}.
+     *
+     * @param maxSize
+     *            maximum size of a decompressed body in bytes
+     */
+    public static void setMaxDecompressedSize(int maxSize) {
+        maxDecompressedSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * @param acceptEncoding
+     *            value of the HTTP {@code Accept-Encoding} header, may be null
+     * @return true if a body compressed with this codec may be sent to the
+     *         client as it is. An entry for the codec takes precedence over
+     *         {@code *}, an entry with an invalid q value is not acceptable
+     *         (RFC 7231, section 5.3.4).
+     */
+    public boolean isAccepted(String acceptEncoding) {
+        if (this == NONE) {
+            return true;
+        }
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double quality = -1;
+        double wildcardQuality = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String codingName = parameters[0].trim();
+            if (codingName.equalsIgnoreCase(name)) {
+                quality = getQuality(parameters);
+            } else if (codingName.equals("*")) {
+                wildcardQuality = getQuality(parameters);
+            }
+        }
+        return (quality >= 0 ? quality : wildcardQuality) > 0;
+    }
+
+    /**
+     * @return the q value of an {@code Accept-Encoding} entry, 1 if it has
+     *         none and 0 if it is invalid
+     */
+    private static double getQuality(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.regionMatches(true, 0, "q=", 0, 2)) {
+                String value = parameter.substring(2).trim();
+                return QVALUE.matcher(value).matches() ? Double.parseDouble(value) : 0;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @param name
+     *            codec name, e.g. of the HTTP {@code Content-Encoding} header
+     * @return the codec or null if the name is unknown, {@link #NONE} if the
+     *         name is null or empty
+     */
+    public static MessageCodec forName(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return NONE;
+        }
+        for (MessageCodec codec : values()) {
+            if (codec.name.equalsIgnoreCase(name.trim())) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the codec the body of the message is compressed with
+     * @throws MessageFormatException
+     *             if the codec is unknown
+     */
+    public static MessageCodec of(Message message) throws JMSException {
+        String name = message.getStringProperty(PROPERTY);
+        MessageCodec codec = forName(name);
+        if (codec == null) {
+            throw new MessageFormatException("Message " + message.getJMSMessageID() + " has the unknown " + PROPERTY + "=" + name);
+        }
+        return codec;
+    }
+
+    /**
+     * Reads the complete body of the message and decompresses it if needed.
+     * Use this in a {@code MessageHandler} instead of reading the body
+     * directly.
+     *
+     * @return the decompressed body
+     * @throws MessageFormatException
+     *             if the codec is unknown or the body could not be
+     *             decompressed, e.g. because it exceeds the maximum size
+     */
+    public static byte[] readBody(BytesMessage message) throws JMSException {
+        MessageCodec codec = of(message);
+        byte[] body = new byte[(int) message.getBodyLength()];
+        message.readBytes(body);
+        try {
+            return codec.decompress(body);
+        } catch (IOException e) {
+            MessageFormatException exception = new MessageFormatException(
+                    "Could not decompress message " + message.getJMSMessageID() + " with " + PROPERTY + "=" + codec.name + ". Error=" + e);
+            exception.setLinkedException(e);
+            throw exception;
+        }
+    }
+}
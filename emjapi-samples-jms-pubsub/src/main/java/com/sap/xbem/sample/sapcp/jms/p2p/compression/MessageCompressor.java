@@ -0,0 +1,209 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceCompressionProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+
+/**
+ * Writes the bodies of sent messages, compressed with the {@link MessageCodec}
+ * configured for their destination. Bodies below the threshold are written as
+ * they are, the time to compress them would outweigh the saved bytes. A body
+ * which doesn't get smaller is sent uncompressed as well.
+ */
+@Component
+public class MessageCompressor {
+
+    private final MessageCodec defaultCodec;
+    private final Map<String, MessageCodec> codecs;
+    private final int threshold;
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+
+    @Autowired
+    public MessageCompressor(MessagingServiceCompressionProperties properties, MessagingMetrics metrics) {
+        this.defaultCodec = properties.getCodec() != null ? properties.getCodec() : MessageCodec.NONE;
+        this.codecs = new HashMap<>(properties.getDestinations());
+        this.threshold = Math.max(0, properties.getThreshold());
+        MessageCodec.setMaxDecompressedSize(properties.getMaxDecompressedSize());
+        metrics.counter("messaging.compression.bytes", uncompressedBytes, LongAdder::sum, "stage", "uncompressed");
+        metrics.counter("messaging.compression.bytes", compressedBytes, LongAdder::sum, "stage", "compressed");
+    }
+
+    /**
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @return the codec bodies for the destination are compressed with
+     */
+    public MessageCodec getCodec(String destinationName) {
+        return codecs.getOrDefault(destinationName, defaultCodec);
+    }
+
+    /**
+     * @param session
+     *            creates the message
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param payload
+     *            uncompressed body
+     * @return a message with the body, compressed if configured for the
+     *         destination
+     * @throws JMSException
+     *             if the message could not be created
+     */
+    public BytesMessage createMessage(Session session, String destinationName, byte[] payload) throws JMSException {
+        return createMessage(session, encode(destinationName, payload));
+    }
+
+    /**
+     * Compresses the body once, so it can be written to any number of
+     * messages for destinations with the same codec.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param payload
+     *            uncompressed body
+     * @return the body, compressed if configured for the destination
+     */
+    public EncodedBody encode(String destinationName, byte[] payload) {
+        MessageCodec codec = getCodec(destinationName);
+        if (codec != MessageCodec.NONE && payload.length >= threshold) {
+            byte[] compressed = compress(codec, payload);
+            if (compressed.length < payload.length) {
+                uncompressedBytes.add(payload.length);
+                compressedBytes.add(compressed.length);
+                return new EncodedBody(codec, compressed, payload.length);
+            }
+        }
+        return new EncodedBody(MessageCodec.NONE, payload, payload.length);
+    }
+
+    /**
+     * @param session
+     *            creates the message
+     * @param body
+     *            body returned by {@link #encode(String, byte[])}
+     * @return a new message with the body
+     * @throws JMSException
+     *             if the message could not be created
+     */
+    public BytesMessage createMessage(Session session, EncodedBody body) throws JMSException {
+        BytesMessage message = session.createBytesMessage();
+        if (body.codec != MessageCodec.NONE) {
+            message.setStringProperty(MessageCodec.PROPERTY, body.codec.getName());
+        }
+        message.writeBytes(body.data);
+        return message;
+    }
+
+    /**
+     * Copies a body of unknown length to the message. Only the first
+     * {@code threshold} bytes are read before deciding whether to compress, the
+     * rest is compressed on the fly.
+     *
+     * @param message
+     *            new message
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param body
+     *            uncompressed body, read until its end
+     * @param buffer
+     *            used to copy the body
+     * @return number of uncompressed bytes read from the body
+     * @throws JMSException
+     *             if the body could not be written to the message
+     * @throws IOException
+     *             if the body could not be read
+     */
+    public long write(BytesMessage message, String destinationName, InputStream body, byte[] buffer) throws JMSException, IOException {
+        try {
+            MessageCodec codec = getCodec(destinationName);
+            if (codec == MessageCodec.NONE) {
+                return copy(body, new BytesMessageOutputStream(message), buffer);
+            }
+            ByteArrayOutputStream head = new ByteArrayOutputStream(Math.min(threshold, buffer.length));
+            int read = 0;
+            while (head.size() < threshold && (read = body.read(buffer, 0, Math.min(buffer.length, threshold - head.size()))) != -1) {
+                head.write(buffer, 0, read);
+            }
+            if (read == -1) { // ended below the threshold
+                message.writeBytes(head.toByteArray());
+                return head.size();
+            }
+            message.setStringProperty(MessageCodec.PROPERTY, codec.getName());
+            BytesMessageOutputStream target = new BytesMessageOutputStream(message);
+            long length;
+            try (OutputStream output = codec.compress(target)) {
+                head.writeTo(output);
+                length = head.size() + copy(body, output, buffer);
+            }
+            uncompressedBytes.add(length);
+            compressedBytes.add(target.getCount());
+            return length;
+        } catch (IOException e) {
+            if (e.getCause() instanceof JMSException) { // thrown by BytesMessageOutputStream
+                throw (JMSException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static long copy(InputStream input, OutputStream output, byte[] buffer) throws IOException {
+        long length = 0;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * A message body as it is written to the message.
+     */
+    public static class EncodedBody {
+
+        private final MessageCodec codec;
+        private final byte[] data;
+        private final int length;
+
+        EncodedBody(MessageCodec codec, byte[] data, int length) {
+            this.codec = codec;
+            this.data = data;
+            this.length = length;
+        }
+
+        public MessageCodec getCodec() {
+            return codec;
+        }
+
+        /**
+         * @return number of uncompressed bytes
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private static byte[] compress(MessageCodec codec, byte[] payload) {
+        try {
+            return codec.compress(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown for arrays
+        }
+    }
+}
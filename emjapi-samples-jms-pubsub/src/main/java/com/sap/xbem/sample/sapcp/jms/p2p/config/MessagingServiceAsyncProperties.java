@@ -0,0 +1,24 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings of the asynchronous send endpoints.
+ */
+@ConfigurationProperties(prefix = "messaging.async")
+public class MessagingServiceAsyncProperties {
+
+    /**
+     * Maximum number of sends which are not yet confirmed by the broker. Further
+     * sends are rejected until confirmations come in.
+     */
+    private int maxInFlight = 1000;
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+}
@@ -0,0 +1,38 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Defaults of the batch endpoints. A transaction is committed after
+ * {@link #getSize()} messages or {@link #getInterval()} milliseconds, whichever
+ * comes first. Both can be overridden per request.
+ */
+@ConfigurationProperties(prefix = "messaging.batch")
+public class MessagingServiceBatchProperties {
+
+    /**
+     * Number of messages sent within one transaction.
+     */
+    private int size = 500;
+
+    /**
+     * Maximum time in milliseconds a transaction stays open.
+     */
+    private long interval = 1000;
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+}
@@ -0,0 +1,70 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCodec;
+
+/**
+ * Compression of the sent message bodies, see
+ * {@link com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCompressor}.
+ */
+@ConfigurationProperties(prefix = "messaging.compression")
+public class MessagingServiceCompressionProperties {
+
+    /**
+     * Codec of all destinations which are not listed in {@link #destinations}.
+     */
+    private MessageCodec codec = MessageCodec.NONE;
+
+    /**
+     * Codec per destination name including the mandatory prefix, e.g.
+     * {@code messaging.compression.destinations.[queue:orders]=lz4}.
+     */
+    private Map<String, MessageCodec> destinations = new HashMap<>();
+
+    /**
+     * Bodies smaller than this number of bytes are sent uncompressed.
+     */
+    private int threshold = 1024;
+
+    /**
+     * Received bodies which decompress to more than this number of bytes are
+     * rejected instead of being read into memory.
+     */
+    private int maxDecompressedSize = MessageCodec.DEFAULT_MAX_DECOMPRESSED_SIZE;
+
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    public Map<String, MessageCodec> getDestinations() {
+        return destinations;
+    }
+
+    public void setDestinations(Map<String, MessageCodec> destinations) {
+        this.destinations = destinations;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getMaxDecompressedSize() {
+        return maxDecompressedSize;
+    }
+
+    public void setMaxDecompressedSize(int maxDecompressedSize) {
+        this.maxDecompressedSize = maxDecompressedSize;
+    }
+}
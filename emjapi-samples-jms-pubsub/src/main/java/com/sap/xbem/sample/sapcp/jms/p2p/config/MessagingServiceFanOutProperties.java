@@ -0,0 +1,25 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings of the fan-out endpoint, see
+ * {@link com.sap.xbem.sample.sapcp.jms.p2p.fanout.MessageFanOutSender}.
+ */
+@ConfigurationProperties(prefix = "messaging.fan-out")
+public class MessagingServiceFanOutProperties {
+
+    /**
+     * Maximum number of topics per request. Larger requests are rejected with
+     * status 400.
+     */
+    private int maxTopics = 50;
+
+    public int getMaxTopics() {
+        return maxTopics;
+    }
+
+    public void setMaxTopics(int maxTopics) {
+        this.maxTopics = maxTopics;
+    }
+}
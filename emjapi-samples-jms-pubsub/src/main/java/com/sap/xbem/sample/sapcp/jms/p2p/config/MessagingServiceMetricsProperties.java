@@ -0,0 +1,39 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings of the messaging metrics, see
+ * {@link com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics}.
+ */
+@ConfigurationProperties(prefix = "messaging.metrics")
+public class MessagingServiceMetricsProperties {
+
+    /**
+     * Number of destinations which get their own destination tag. Metrics of
+     * all further destinations are tagged with {@code other}.
+     */
+    private int maxDestinations = 50;
+
+    /**
+     * Whether the timers and payload sizes publish histogram buckets, e.g. to
+     * compute percentiles in Prometheus.
+     */
+    private boolean histogram = true;
+
+    public int getMaxDestinations() {
+        return maxDestinations;
+    }
+
+    public void setMaxDestinations(int maxDestinations) {
+        this.maxDestinations = maxDestinations;
+    }
+
+    public boolean isHistogram() {
+        return histogram;
+    }
+
+    public void setHistogram(boolean histogram) {
+        this.histogram = histogram;
+    }
+}
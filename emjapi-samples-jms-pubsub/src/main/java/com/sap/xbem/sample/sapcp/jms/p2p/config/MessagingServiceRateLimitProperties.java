@@ -0,0 +1,178 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Limits of the send endpoints, see
+ * {@link com.sap.xbem.sample.sapcp.jms.p2p.ratelimit.SendRateLimiter}. Rates
+ * are messages per second, {@code 0} means unlimited.
+ */
+@ConfigurationProperties(prefix = "messaging.rate-limit")
+public class MessagingServiceRateLimitProperties {
+
+    /**
+     * Reject sends above the limits with status 429.
+     */
+    private boolean enabled = false;
+
+    /**
+     * Maximum rate over all destinations.
+     */
+    private double globalRate = 1000;
+
+    /**
+     * Maximum rate of each destination which is not listed in
+     * {@link #destinations}.
+     */
+    private double destinationRate = 200;
+
+    /**
+     * Maximum rate per destination name including the mandatory prefix, e.g.
+     * {@code messaging.rate-limit.destinations.[topic:orders]=50}.
+     */
+    private Map<String, Double> destinations = new HashMap<>();
+
+    /**
+     * Number of seconds of the current rate which may be sent at once after an
+     * idle time.
+     */
+    private double burst = 1;
+
+    /**
+     * Lowest rate, as ratio of the maximum rate, the limit is lowered to.
+     */
+    private double minRateRatio = 0.1;
+
+    /**
+     * Average send time in milliseconds above which the limit is lowered.
+     */
+    private long latencyThreshold = 500;
+
+    /**
+     * Ratio of failed sends above which the limit is lowered.
+     */
+    private double errorThreshold = 0.05;
+
+    /**
+     * Factor the limit is multiplied with when it is lowered.
+     */
+    private double decreaseFactor = 0.5;
+
+    /**
+     * Part of the maximum rate which is added to the limit per interval
+     * without trouble.
+     */
+    private double increaseRatio = 0.1;
+
+    /**
+     * Interval in milliseconds in which the limits are adjusted.
+     */
+    private long adjustInterval = 1000;
+
+    /**
+     * Maximum number of destinations with an own limit, each takes a few
+     * hundred bytes. The least recently used limit makes room for a new destination
+     * once it is idle, until then the destinations beyond share one limit of
+     * {@link #destinationRate}.
+     */
+    private int maxDestinations = 1000;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public double getGlobalRate() {
+        return globalRate;
+    }
+
+    public void setGlobalRate(double globalRate) {
+        this.globalRate = globalRate;
+    }
+
+    public double getDestinationRate() {
+        return destinationRate;
+    }
+
+    public void setDestinationRate(double destinationRate) {
+        this.destinationRate = destinationRate;
+    }
+
+    public Map<String, Double> getDestinations() {
+        return destinations;
+    }
+
+    public void setDestinations(Map<String, Double> destinations) {
+        this.destinations = destinations;
+    }
+
+    public double getBurst() {
+        return burst;
+    }
+
+    public void setBurst(double burst) {
+        this.burst = burst;
+    }
+
+    public double getMinRateRatio() {
+        return minRateRatio;
+    }
+
+    public void setMinRateRatio(double minRateRatio) {
+        this.minRateRatio = minRateRatio;
+    }
+
+    public long getLatencyThreshold() {
+        return latencyThreshold;
+    }
+
+    public void setLatencyThreshold(long latencyThreshold) {
+        this.latencyThreshold = latencyThreshold;
+    }
+
+    public double getErrorThreshold() {
+        return errorThreshold;
+    }
+
+    public void setErrorThreshold(double errorThreshold) {
+        this.errorThreshold = errorThreshold;
+    }
+
+    public double getDecreaseFactor() {
+        return decreaseFactor;
+    }
+
+    public void setDecreaseFactor(double decreaseFactor) {
+        this.decreaseFactor = decreaseFactor;
+    }
+
+    public double getIncreaseRatio() {
+        return increaseRatio;
+    }
+
+    public void setIncreaseRatio(double increaseRatio) {
+        this.increaseRatio = increaseRatio;
+    }
+
+    public long getAdjustInterval() {
+        return adjustInterval;
+    }
+
+    public void setAdjustInterval(long adjustInterval) {
+        this.adjustInterval = adjustInterval;
+    }
+
+    public int getMaxDestinations() {
+        return maxDestinations;
+    }
+
+    public void setMaxDestinations(int maxDestinations) {
+        this.maxDestinations = maxDestinations;
+    }
+}
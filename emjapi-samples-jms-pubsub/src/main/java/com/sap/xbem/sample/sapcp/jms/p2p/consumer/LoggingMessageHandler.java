@@ -0,0 +1,32 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.consumer;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCodec;
+
+/**
+ * Default {@link MessageHandler} which only logs the received messages.
+ */
+@Component("loggingMessageHandler")
+public class LoggingMessageHandler implements MessageHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoggingMessageHandler.class);
+
+    @Override
+    public void handle(String queueName, Message message) throws JMSException {
+        if (message instanceof BytesMessage) {
+            byte[] byteData = MessageCodec.readBody((BytesMessage) message); // decompressed if needed
+            LOG.info("Received message={} from queue={}", new String(byteData, StandardCharsets.UTF_8), queueName);
+        } else {
+            LOG.info("Received message with id={} from queue={}", message.getJMSMessageID(), queueName);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.consumer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sap.xbem.sample.sapcp.jms.p2p.dedup.MessageDeduplicator;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.DestinationFactory;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.MessagingServiceConnectionPool;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.PooledSession;
+
+/**
+ * Receives up to a given number of messages with one consumer on a pooled
+ * {@link Session#CLIENT_ACKNOWLEDGE} session and returns them as JSON array.
+ * <p>
+ * The messages are acknowledged together, once the array has been serialized.
+ * If receiving or serializing fails, the session is discarded and the broker
+ * redelivers all messages of the batch. Messages which have been returned
+ * before are acknowledged with the batch but left out, see
+ * {@link MessageDeduplicator}.
+ */
+@Component
+public class MessageBatchReceiver {
+
+    private final MessagingServiceConnectionPool connectionPool;
+    private final ObjectMapper objectMapper;
+    private final MessagingMetrics metrics;
+    private final MessageDeduplicator deduplicator;
+
+    @Autowired
+    public MessageBatchReceiver(MessagingServiceConnectionPool connectionPool, ObjectMapper objectMapper, MessagingMetrics metrics,
+            MessageDeduplicator deduplicator) {
+        this.connectionPool = connectionPool;
+        this.objectMapper = objectMapper;
+        this.metrics = metrics;
+        this.deduplicator = deduplicator;
+    }
+
+    /**
+     * Waits up to {@code waitTime} for the messages. Once the time is up,
+     * messages which are already buffered by the client are still taken
+     * without waiting, so a backlog is drained in full batches.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param destinationFactory
+     *            creates the destination, e.g. {@code Session::createQueue}
+     * @param maxMessages
+     *            maximum number of messages to receive
+     * @param waitTime
+     *            maximum time in milliseconds to wait for messages
+     * @return the message bodies as JSON array, empty if no message arrived
+     * @throws JMSException
+     *             if no session could be borrowed or receiving failed
+     * @throws IOException
+     *             if the messages could not be serialized
+     */
+    public byte[] receive(String destinationName, DestinationFactory destinationFactory, int maxMessages, long waitTime)
+            throws JMSException, IOException {
+        try (PooledSession pooledSession = connectionPool.borrowReceiveSession(Session.CLIENT_ACKNOWLEDGE)) {
+            Session session = pooledSession.getSession();
+            List<Message> claimed = deduplicator.isEnabled() ? new ArrayList<>() : null;
+            try (MessageConsumer consumer = session.createConsumer(destinationFactory.create(session, destinationName))) {
+                List<String> bodies = new ArrayList<>(Math.min(maxMessages, 1024));
+                Message last = null;
+                long start = metrics.start();
+                long deadline = System.currentTimeMillis() + waitTime;
+                try {
+                    while (bodies.size() < maxMessages) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        Message message = remaining > 0 ? consumer.receive(remaining) : consumer.receiveNoWait();
+                        if (message == null) {
+                            break;
+                        }
+                        last = message;
+                        if (!deduplicator.claim(destinationName, message)) {
+                            continue; // processed before or received twice within the batch
+                        }
+                        if (claimed != null) {
+                            claimed.add(message);
+                        }
+                        String body = MessageBodies.getBody(message);
+                        metrics.receivedPayload(destinationName, MessageBodies.getBodyLength(message, body));
+                        bodies.add(body);
+                    }
+                    metrics.received(destinationName, MessagingMetrics.OPERATION_BATCH, start, true);
+                } catch (JMSException | RuntimeException e) {
+                    metrics.received(destinationName, MessagingMetrics.OPERATION_BATCH, start, false);
+                    throw e;
+                }
+                byte[] json = objectMapper.writeValueAsBytes(bodies);
+                if (last != null) {
+                    long ackStart = metrics.start();
+                    try {
+                        last.acknowledge(); // acknowledges all messages received by the session
+                        metrics.acknowledged(destinationName, MessagingMetrics.OPERATION_BATCH, ackStart, true);
+                    } catch (JMSException | RuntimeException e) {
+                        metrics.acknowledged(destinationName, MessagingMetrics.OPERATION_BATCH, ackStart, false);
+                        throw e;
+                    }
+                    if (claimed != null) {
+                        deduplicator.processed(destinationName, claimed);
+                    }
+                }
+                return json;
+            } catch (JMSException | IOException | RuntimeException e) {
+                pooledSession.invalidate(); // closing the session makes the broker redeliver the batch
+                if (claimed != null) {
+                    deduplicator.release(destinationName, claimed);
+                }
+                throw e;
+            }
+        }
+    }
+}
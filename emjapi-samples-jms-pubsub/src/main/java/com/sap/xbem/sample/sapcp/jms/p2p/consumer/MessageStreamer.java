@@ -0,0 +1,223 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.consumer;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+import org.apache.qpid.jms.JmsConnection;
+import org.apache.qpid.jms.policy.JmsDefaultPrefetchPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.sap.cloud.servicesdk.xbem.extension.sapcp.jms.MessagingServiceJmsConnectionFactory;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceStreamProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.dedup.MessageDeduplicator;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Streams the messages of a queue as they arrive. One consumer stays attached
+ * for the whole stream and the broker pushes the messages to it.
+ * <p>
+ * Every stream has its own connection, because the prefetch (the number of
+ * messages the broker sends ahead) is a setting of the connection. Messages are
+ * only handed to the stream on demand: the listener waits until the subscriber
+ * requests a message, the messages in between stay in the prefetch of the
+ * consumer. The response writer requests the next message once it has written
+ * the previous one, so a message is acknowledged only after that request. A
+ * slow client slows down the consumer instead of filling a buffer, and messages
+ * which were not written when the client disconnects are redelivered. Messages
+ * which have been streamed before are acknowledged and skipped, see
+ * {@link MessageDeduplicator}.
+ */
+@Component
+public class MessageStreamer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageStreamer.class);
+    private static final String QUEUE_PREFIX = "queue:"; // mandatory prefix for connection to a queue
+
+    private final ConnectionFactory connectionFactory;
+    private final MessagingServiceStreamProperties properties;
+    private final MessagingMetrics metrics;
+    private final MessageDeduplicator deduplicator;
+
+    @Autowired
+    public MessageStreamer(MessagingServiceJmsConnectionFactory connectionFactory, MessagingServiceStreamProperties properties,
+            MessagingMetrics metrics, MessageDeduplicator deduplicator) {
+        this.connectionFactory = connectionFactory;
+        this.properties = properties;
+        this.metrics = metrics;
+        this.deduplicator = deduplicator;
+    }
+
+    /**
+     * @param queueName
+     *            queue name without prefix
+     * @param receiveTimeout
+     *            time in milliseconds without a message after which the stream
+     *            ends
+     * @param maxMessages
+     *            number of messages after which the stream ends
+     * @param prefetch
+     *            number of messages the broker sends ahead
+     * @return the message bodies, the consumer is closed when the stream ends or
+     *         is cancelled
+     */
+    public Flux<String> stream(String queueName, long receiveTimeout, int maxMessages, int prefetch) {
+        Flux<String> messages = Flux.<String> create(sink -> {
+            try {
+                Connection connection = connectionFactory.createConnection();
+                // the stream may end within onMessage, where the connection must not be closed
+                sink.onDispose(() -> Schedulers.boundedElastic().schedule(() -> closeQuietly(connection, queueName)));
+                if (connection instanceof JmsConnection) {
+                    JmsDefaultPrefetchPolicy prefetchPolicy = new JmsDefaultPrefetchPolicy();
+                    prefetchPolicy.setAll(Math.max(0, prefetch));
+                    ((JmsConnection) connection).setPrefetchPolicy(prefetchPolicy);
+                }
+                Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+                MessageConsumer consumer = session.createConsumer(session.createQueue(QUEUE_PREFIX + queueName));
+                consumer.setMessageListener(new SinkMessageListener(sink, QUEUE_PREFIX + queueName, maxMessages));
+                connection.start();
+                LOG.info("Started stream for queue={} with prefetch={}", queueName, prefetch);
+            } catch (JMSException e) {
+                sink.error(e);
+            }
+        }, FluxSink.OverflowStrategy.ERROR); // never buffers, messages are only emitted on demand
+        return messages.timeout(Duration.ofMillis(receiveTimeout), Flux.empty())
+                .take(Duration.ofMillis(properties.getMaxDuration()));
+    }
+
+    private static void closeQuietly(Connection connection, String queueName) {
+        try {
+            connection.close();
+            LOG.info("Closed stream for queue={}", queueName);
+        } catch (JMSException e) {
+            LOG.debug("Could not close the stream connection for queue={}.", queueName, e);
+        }
+    }
+
+    private class SinkMessageListener implements MessageListener {
+
+        private final FluxSink<String> sink;
+        private final String destinationName;
+        private final int maxMessages;
+        private final Semaphore demand = new Semaphore(0);
+        private volatile boolean unbounded;
+        private int emitted; // only used by the delivery thread of the session
+
+        SinkMessageListener(FluxSink<String> sink, String destinationName, int maxMessages) {
+            this.sink = sink;
+            this.destinationName = destinationName;
+            this.maxMessages = maxMessages;
+            sink.onRequest(this::request);
+        }
+
+        /**
+         * Runs on the delivery thread of the session, one message at a time. The
+         * message is acknowledged before the method returns, so the session never
+         * has more than one unacknowledged message.
+         */
+        @Override
+        public void onMessage(Message message) {
+            if (sink.isCancelled() || emitted >= maxMessages) {
+                return; // not acknowledged, the broker redelivers it once the consumer is closed
+            }
+            try {
+                if (!deduplicator.claim(destinationName, message)) {
+                    message.acknowledge();
+                    return;
+                }
+                boolean acknowledged = false;
+                try {
+                    acknowledged = deliver(message);
+                } finally {
+                    if (!acknowledged) {
+                        deduplicator.release(destinationName, message); // redelivered, so it is emitted again
+                    }
+                }
+                if (emitted >= maxMessages) {
+                    sink.complete();
+                }
+            } catch (JMSException e) {
+                sink.error(e);
+            }
+        }
+
+        /**
+         * Emits the claimed message once there is demand and acknowledges it
+         * once it has been written.
+         *
+         * @return false if the stream was cancelled before, the message is not
+         *         acknowledged then
+         */
+        private boolean deliver(Message message) throws JMSException {
+            if (!awaitDemand(true)) {
+                return false; // cancelled, not acknowledged
+            }
+            String body = MessageBodies.getBody(message);
+            metrics.receivedPayload(destinationName, MessageBodies.getBodyLength(message, body));
+            sink.next(body);
+            emitted++;
+            if (!awaitDemand(false)) {
+                return false; // cancelled before the message was written, not acknowledged
+            }
+            long start = metrics.start();
+            try {
+                message.acknowledge();
+                metrics.acknowledged(destinationName, MessagingMetrics.OPERATION_STREAM, start, true);
+            } catch (JMSException e) {
+                metrics.acknowledged(destinationName, MessagingMetrics.OPERATION_STREAM, start, false);
+                throw e;
+            }
+            deduplicator.processed(destinationName, message);
+            return true;
+        }
+
+        private void request(long n) {
+            if (n >= Integer.MAX_VALUE) {
+                unbounded = true;
+            } else {
+                demand.release((int) n);
+            }
+        }
+
+        /**
+         * Waits until the subscriber requests a message or the stream is
+         * cancelled.
+         *
+         * @param take
+         *            takes the request for the next message, otherwise it is
+         *            only checked that one is there
+         * @return false if the stream has been cancelled
+         */
+        private boolean awaitDemand(boolean take) {
+            try {
+                while (!unbounded && !demand.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    if (sink.isCancelled()) {
+                        return false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (!take && !unbounded) {
+                demand.release();
+            }
+            return !sink.isCancelled();
+        }
+    }
+}
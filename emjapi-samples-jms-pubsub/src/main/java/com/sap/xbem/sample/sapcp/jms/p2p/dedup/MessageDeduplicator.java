@@ -0,0 +1,248 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.dedup;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceDedupProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+
+/**
+ * Recognizes messages which have been received before, e.g. redelivered after
+ * a failover, so the receive paths can acknowledge them without processing
+ * them again (idempotent consumer).
+ * <p>
+ * A message is identified by its destination and its JMSMessageID or a
+ * configured property, hashed to 64 bits without creating objects. Two tiers
+ * remember the hashes with fixed memory:
+ * <ul>
+ * <li>the most recent {@code exactSize} hashes in a {@link FingerprintSet},
+ * which answers exactly</li>
+ * <li>all hashes of the last window in a {@link RotatingBloomFilter}, which
+ * takes a few bytes per message but may take a new message for a duplicate
+ * with the configured false positive rate</li>
+ * </ul>
+ * The callers {@link #claim(String, Message)} a message before processing it.
+ * The check and the claim are one step, so two consumers which receive the
+ * same message at the same time can't both process it. A claimed message is
+ * remembered with {@link #processed(String, Message)} only afterwards, or
+ * {@link #release(String, Message) released} if its processing failed, so it
+ * is not dropped when it is redelivered.
+ * <p>
+ * Does nothing unless {@link MessagingServiceDedupProperties#isEnabled()}.
+ */
+@Component
+public class MessageDeduplicator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageDeduplicator.class);
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long GOLDEN_RATIO = 0x9e3779b97f4a7c15L;
+
+    private final boolean enabled;
+    private final String keyProperty;
+    private final FingerprintSet recent;
+    private final FingerprintSet claimed;
+    private final RotatingBloomFilter filter;
+    private final LongAdder exactDuplicates = new LongAdder();
+    private final LongAdder filterDuplicates = new LongAdder();
+
+    @Autowired
+    public MessageDeduplicator(MessagingServiceDedupProperties properties, MessagingMetrics metrics) {
+        this.enabled = properties.isEnabled();
+        this.keyProperty = properties.getKeyProperty() == null || properties.getKeyProperty().isEmpty() ? null : properties.getKeyProperty();
+        if (!enabled) {
+            this.recent = null;
+            this.claimed = null;
+            this.filter = null;
+            return;
+        }
+        this.recent = new FingerprintSet(properties.getExactSize());
+        this.claimed = new FingerprintSet(properties.getExactSize());
+        this.filter = new RotatingBloomFilter(properties.getExpectedMessages(), properties.getFalsePositiveRate(), properties.getWindow());
+        metrics.gauge("messaging.dedup.messages", this, MessageDeduplicator::getExactSize, "tier", "exact");
+        metrics.gauge("messaging.dedup.messages", this, MessageDeduplicator::getFilterSize, "tier", "filter");
+        metrics.counter("messaging.dedup.duplicates", exactDuplicates, LongAdder::sum, "tier", "exact");
+        metrics.counter("messaging.dedup.duplicates", filterDuplicates, LongAdder::sum, "tier", "filter");
+        LOG.info("Deduplicating received messages by {} with a filter of {} bytes.", keyProperty != null ? keyProperty : "JMSMessageID",
+                filter.getBytes());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Claims a message unless it has been processed before or is claimed by
+     * another consumer, e.g. a message of the same batch. Pass a claimed
+     * message to {@link #processed(String, Message)} once it has been
+     * processed or to {@link #release(String, Message)} if that failed.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param message
+     *            received message
+     * @return true if the message has been claimed and should be processed,
+     *         false if it is a duplicate which should be acknowledged without
+     *         processing it
+     * @throws JMSException
+     *             if the key could not be read
+     */
+    public boolean claim(String destinationName, Message message) throws JMSException {
+        if (!enabled) {
+            return true;
+        }
+        String key = getKey(message);
+        if (key == null) {
+            return true;
+        }
+        long hash = hash(destinationName, key);
+        boolean exact;
+        synchronized (this) {
+            exact = recent.contains(hash) || claimed.contains(hash);
+            if (!exact && !filter.mightContain(hash, mix(hash ^ GOLDEN_RATIO))) {
+                claimed.add(hash);
+                return true;
+            }
+        }
+        (exact ? exactDuplicates : filterDuplicates).increment();
+        LOG.debug("Dropping duplicate message {}={} from destination={}.", keyProperty != null ? keyProperty : "JMSMessageID", key,
+                destinationName);
+        return false;
+    }
+
+    /**
+     * Remembers a claimed message once it has been processed.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param message
+     *            received message
+     * @throws JMSException
+     *             if the key could not be read
+     */
+    public void processed(String destinationName, Message message) throws JMSException {
+        if (!enabled) {
+            return;
+        }
+        String key = getKey(message);
+        if (key == null) {
+            return;
+        }
+        record(hash(destinationName, key));
+    }
+
+    /**
+     * Remembers claimed messages once they have been processed together, e.g.
+     * a batch.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param messages
+     *            received messages
+     * @throws JMSException
+     *             if the key of a message could not be read
+     */
+    public void processed(String destinationName, Collection<? extends Message> messages) throws JMSException {
+        for (Message message : messages) {
+            processed(destinationName, message);
+        }
+    }
+
+    /**
+     * Gives up the claim of a message whose processing failed, so it is
+     * processed when it is redelivered.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param message
+     *            received message
+     */
+    public void release(String destinationName, Message message) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            String key = getKey(message);
+            if (key != null) {
+                long hash = hash(destinationName, key);
+                synchronized (this) {
+                    claimed.remove(hash);
+                }
+            }
+        } catch (JMSException e) {
+            LOG.warn("Could not release message from destination={}.", destinationName, e);
+        }
+    }
+
+    /**
+     * Same as {@link #release(String, Message)} for messages which have been
+     * processed together.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param messages
+     *            received messages
+     */
+    public void release(String destinationName, Collection<? extends Message> messages) {
+        for (Message message : messages) {
+            release(destinationName, message);
+        }
+    }
+
+    /**
+     * @return number of messages which are remembered exactly
+     */
+    public synchronized int getExactSize() {
+        return recent.size();
+    }
+
+    /**
+     * @return number of messages in the filter
+     */
+    public synchronized long getFilterSize() {
+        return filter.size();
+    }
+
+    private synchronized void record(long hash) {
+        claimed.remove(hash);
+        recent.add(hash);
+        filter.put(hash, mix(hash ^ GOLDEN_RATIO));
+    }
+
+    private String getKey(Message message) throws JMSException {
+        return keyProperty != null ? message.getStringProperty(keyProperty) : message.getJMSMessageID();
+    }
+
+    /**
+     * FNV-1a over the characters of both strings, finished with the MurmurHash3
+     * mix so all bits depend on all characters.
+     */
+    private static long hash(String destinationName, String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < destinationName.length(); i++) {
+            hash = (hash ^ destinationName.charAt(i)) * FNV_PRIME;
+        }
+        hash = (hash ^ 0xffff) * FNV_PRIME; // separator, not a valid character
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
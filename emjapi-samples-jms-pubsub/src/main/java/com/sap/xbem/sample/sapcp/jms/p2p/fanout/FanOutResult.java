@@ -0,0 +1,116 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.fanout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Response of a fan-out. Lists the outcome per destination in the order of the
+ * request.
+ */
+public class FanOutResult {
+
+    public static final String STATUS_SENT = "sent";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_REJECTED = "rejected";
+
+    private final boolean transacted;
+    private final List<Target> targets = new ArrayList<>();
+
+    FanOutResult(boolean transacted) {
+        this.transacted = transacted;
+    }
+
+    public boolean isTransacted() {
+        return transacted;
+    }
+
+    public long getSent() {
+        return count(STATUS_SENT);
+    }
+
+    public long getFailed() {
+        return count(STATUS_FAILED);
+    }
+
+    public long getRejected() {
+        return count(STATUS_REJECTED);
+    }
+
+    /**
+     * @return the longest time in milliseconds after which a rejected
+     *         destination may be tried again, 0 if none was rejected
+     */
+    public long getRetryAfter() {
+        long retryAfter = 0;
+        for (Target target : targets) {
+            retryAfter = Math.max(retryAfter, target.retryAfter);
+        }
+        return retryAfter;
+    }
+
+    public List<Target> getTargets() {
+        return Collections.unmodifiableList(targets);
+    }
+
+    Target add(String destination) {
+        Target target = new Target(destination);
+        targets.add(target);
+        return target;
+    }
+
+    private long count(String status) {
+        return targets.stream().filter(target -> status.equals(target.status)).count();
+    }
+
+    /**
+     * Outcome of a single destination. Updated by the completion listeners, so
+     * the fields are volatile.
+     */
+    public static class Target {
+
+        private final String destination;
+        private volatile String status;
+        private volatile String error;
+        private volatile long retryAfter;
+
+        Target(String destination) {
+            this.destination = destination;
+        }
+
+        public String getDestination() {
+            return destination;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return time in milliseconds after which the destination may be tried
+         *         again if it has been rejected
+         */
+        public long getRetryAfter() {
+            return retryAfter;
+        }
+
+        void sent() {
+            this.status = STATUS_SENT;
+        }
+
+        void failed(String error) {
+            this.status = STATUS_FAILED;
+            this.error = error;
+        }
+
+        void rejected(long retryAfter, String error) {
+            this.status = STATUS_REJECTED;
+            this.retryAfter = retryAfter;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.fanout;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.jms.BytesMessage;
+import javax.jms.CompletionListener;
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.async.AsyncMessageSender;
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCodec;
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCompressor;
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCompressor.EncodedBody;
+import com.sap.xbem.sample.sapcp.jms.p2p.fanout.FanOutResult.Target;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.DestinationFactory;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.MessagingServiceConnectionPool;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.PooledSession;
+import com.sap.xbem.sample.sapcp.jms.p2p.ratelimit.SendRateLimiter;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Sends one body to many destinations. The body is compressed once per codec
+ * instead of once per destination.
+ * <p>
+ * By default the messages are sent with the JMS 2.0 {@link CompletionListener}
+ * through the {@link AsyncMessageSender}, so all of them are in flight at the
+ * same time and the call takes about as long as the slowest destination. Each
+ * destination has its own outcome. Each message needs an in-flight permit of
+ * the {@link AsyncMessageSender}, a destination without one is rejected.
+ * <p>
+ * A transacted fan-out sends all messages on one transacted session and
+ * commits once, so either all destinations get the message or none.
+ * <p>
+ * Each destination needs a permit of the {@link SendRateLimiter}. A
+ * destination without permit is rejected, a transacted fan-out as a whole.
+ */
+@Component
+public class MessageFanOutSender {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageFanOutSender.class);
+
+    private final MessagingServiceConnectionPool connectionPool;
+    private final AsyncMessageSender asyncSender;
+    private final MessagingMetrics metrics;
+    private final MessageCompressor compressor;
+    private final SendRateLimiter rateLimiter;
+
+    @Autowired
+    public MessageFanOutSender(MessagingServiceConnectionPool connectionPool, AsyncMessageSender asyncSender, MessagingMetrics metrics,
+            MessageCompressor compressor, SendRateLimiter rateLimiter) {
+        this.connectionPool = connectionPool;
+        this.asyncSender = asyncSender;
+        this.metrics = metrics;
+        this.compressor = compressor;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @param destinationNames
+     *            destination names including the mandatory prefix
+     * @param destinationFactory
+     *            creates the destinations, e.g. {@code Session::createTopic}
+     * @param payload
+     *            message body
+     * @param transacted
+     *            true to send all messages in one transaction
+     * @return completes with the outcome per destination once all sends are
+     *         confirmed or failed, never fails itself
+     */
+    public Mono<FanOutResult> send(List<String> destinationNames, DestinationFactory destinationFactory, byte[] payload, boolean transacted) {
+        if (transacted) {
+            return Mono.fromCallable(() -> sendTransacted(destinationNames, destinationFactory, payload));
+        }
+        return Mono.defer(() -> {
+            FanOutResult result = new FanOutResult(false);
+            Map<MessageCodec, EncodedBody> bodies = new EnumMap<>(MessageCodec.class);
+            List<Mono<Void>> sends = new ArrayList<>(destinationNames.size());
+            for (String destinationName : destinationNames) {
+                Target target = result.add(destinationName);
+                long retryAfter = rateLimiter.tryAcquire(destinationName);
+                if (retryAfter > 0) {
+                    target.rejected(retryAfter, "Too many messages for destination=" + destinationName);
+                    continue;
+                }
+                EncodedBody body = bodies.computeIfAbsent(compressor.getCodec(destinationName), codec -> compressor.encode(destinationName, payload));
+                sends.add(send(target, destinationFactory, body));
+            }
+            return Mono.when(sends).thenReturn(result);
+        });
+    }
+
+    private Mono<Void> send(Target target, DestinationFactory destinationFactory, EncodedBody body) {
+        String destinationName = target.getDestination();
+        return Mono.defer(() -> {
+            long start = metrics.start();
+            return asyncSender.send(destinationName, destinationFactory, body, MessagingMetrics.OPERATION_FANOUT)
+                    .doOnSuccess(ignored -> {
+                        rateLimiter.sent(destinationName, start, true);
+                        target.sent();
+                    })
+                    .onErrorResume(e -> {
+                        if (e instanceof RejectedExecutionException) {
+                            rateLimiter.release(destinationName);
+                            target.rejected(0, e.getMessage());
+                        } else {
+                            rateLimiter.sent(destinationName, start, false);
+                            LOG.warn("Could not send fan-out message to destination={}.", destinationName, e);
+                            target.failed("Could not send message. Error=" + e);
+                        }
+                        return Mono.empty();
+                    });
+        });
+    }
+
+    private FanOutResult sendTransacted(List<String> destinationNames, DestinationFactory destinationFactory, byte[] payload) {
+        FanOutResult result = new FanOutResult(true);
+        List<Target> targets = new ArrayList<>(destinationNames.size());
+        boolean rejected = false;
+        for (String destinationName : destinationNames) {
+            Target target = result.add(destinationName);
+            long retryAfter = rateLimiter.tryAcquire(destinationName);
+            if (retryAfter > 0) {
+                target.rejected(retryAfter, "Too many messages for destination=" + destinationName);
+                rejected = true;
+            } else {
+                targets.add(target);
+            }
+        }
+        if (rejected) {
+            for (Target target : targets) {
+                rateLimiter.release(target.getDestination());
+                target.rejected(0, "Not sent, the transaction includes a destination above its rate limit");
+            }
+            return result;
+        }
+
+        long start = metrics.start();
+        boolean success = false;
+        String error = null;
+        PooledSession pooledSession = null;
+        try {
+            pooledSession = connectionPool.borrowSession(Session.SESSION_TRANSACTED);
+            Map<MessageCodec, BytesMessage> messages = new EnumMap<>(MessageCodec.class);
+            for (Target target : targets) {
+                String destinationName = target.getDestination();
+                MessageCodec codec = compressor.getCodec(destinationName);
+                BytesMessage byteMessage = messages.get(codec);
+                if (byteMessage == null) {
+                    // a synchronous send is done with the message, so it is reused for the next destination
+                    byteMessage = compressor.createMessage(pooledSession.getSession(), compressor.encode(destinationName, payload));
+                    messages.put(codec, byteMessage);
+                }
+                long sendStart = metrics.start();
+                try {
+                    pooledSession.getProducer(destinationName, destinationFactory).send(byteMessage);
+                    metrics.sent(destinationName, MessagingMetrics.OPERATION_FANOUT, sendStart, payload.length, true);
+                } catch (JMSException | RuntimeException e) {
+                    metrics.sent(destinationName, MessagingMetrics.OPERATION_FANOUT, sendStart, payload.length, false);
+                    throw e;
+                }
+            }
+            long commitStart = metrics.start();
+            try {
+                pooledSession.getSession().commit();
+                targets.forEach(target -> metrics.committed(target.getDestination(), commitStart, true));
+            } catch (JMSException | RuntimeException e) {
+                targets.forEach(target -> metrics.committed(target.getDestination(), commitStart, false));
+                throw e;
+            }
+            success = true;
+        } catch (JMSException | RuntimeException e) {
+            LOG.warn("Could not send transacted fan-out to destinations={}, rolling back.", destinationNames, e);
+            error = "Rolled back. Error=" + e;
+            if (pooledSession != null) {
+                try {
+                    pooledSession.getSession().rollback();
+                } catch (JMSException rollbackException) {
+                    LOG.debug("Could not roll back fan-out.", rollbackException);
+                }
+                pooledSession.invalidate();
+            }
+        } finally {
+            if (pooledSession != null) {
+                pooledSession.close();
+            }
+        }
+        for (Target target : targets) {
+            rateLimiter.sent(target.getDestination(), start, success);
+            if (success) {
+                target.sent();
+            } else {
+                target.failed(error);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,210 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.metrics;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceMetricsProperties;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Timers and payload sizes of the messaging operations. All timers are tagged
+ * with {@code outcome} ({@code success} or {@code error}), so the error rate is
+ * the count of the {@code error} series.
+ * <ul>
+ * <li>{@code messaging.connection.create}: opening a pooled connection</li>
+ * <li>{@code messaging.session.borrow}: checking out a pooled session,
+ * including the wait for a free one</li>
+ * <li>{@code messaging.session.create}: creating a session on the broker</li>
+ * <li>{@code messaging.producer.create}: attaching a producer</li>
+ * <li>{@code messaging.send}: sending a message, tagged with
+ * {@code destination} and {@code operation}</li>
+ * <li>{@code messaging.commit}: committing a transaction of a batch send</li>
+ * <li>{@code messaging.receive}: waiting for and reading messages</li>
+ * <li>{@code messaging.ack}: acknowledging received messages</li>
+ * <li>{@code messaging.handle}: running the {@code MessageHandler} of a
+ * message listener</li>
+ * <li>{@code messaging.payload.size}: bytes per message, tagged with
+ * {@code direction} ({@code out} or {@code in})</li>
+ * <li>{@code messaging.ratelimit.rejected}: sends rejected by the rate limit,
+ * tagged with {@code destination} and {@code scope} ({@code destination} or
+ * {@code global})</li>
+ * </ul>
+ * Further gauges and counters, e.g. of the connection pool, are read from their
+ * source on each scrape, see
+ * {@link #gauge(String, Object, ToDoubleFunction, String...)}.
+ * <p>
+ * The {@code destination} tag takes the first
+ * {@link MessagingServiceMetricsProperties#getMaxDestinations()} destination
+ * names only, all others share the value {@code other}. So a large number of
+ * destinations can't flood the registry.
+ * <p>
+ * The callers pass the start time taken with {@link #start()}, so a failed
+ * operation can be recorded from the catch block.
+ */
+public class MessagingMetrics {
+
+    public static final String OPERATION_SYNC = "sync";
+    public static final String OPERATION_ASYNC = "async";
+    public static final String OPERATION_BATCH = "batch";
+    public static final String OPERATION_BINARY = "binary";
+    public static final String OPERATION_LISTENER = "listener";
+    public static final String OPERATION_STREAM = "stream";
+    public static final String OPERATION_SPOOL = "spool";
+    public static final String OPERATION_FANOUT = "fanout";
+    public static final String OPERATION_REQUEST = "request";
+
+    private static final String OTHER_DESTINATION = "other";
+    private static final double MIN_PAYLOAD_SIZE = 16;
+    private static final double MAX_PAYLOAD_SIZE = 64 * 1024 * 1024; // bounds the number of histogram buckets
+
+    private final MeterRegistry registry;
+    private final int maxDestinations;
+    private final boolean histogram;
+    private final Set<String> destinations = ConcurrentHashMap.newKeySet();
+
+    public MessagingMetrics(MeterRegistry registry, MessagingServiceMetricsProperties properties) {
+        this.registry = registry;
+        this.maxDestinations = properties.getMaxDestinations();
+        this.histogram = properties.isHistogram();
+    }
+
+    /**
+     * @return metrics which are kept in memory only, e.g. if no registry is
+     *         available
+     */
+    public static MessagingMetrics noRegistry() {
+        return new MessagingMetrics(new SimpleMeterRegistry(), new MessagingServiceMetricsProperties());
+    }
+
+    /**
+     * @return start time to pass to the record methods
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void connectionCreated(long start, boolean success) {
+        timer("messaging.connection.create", success).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    public void sessionBorrowed(long start, boolean success) {
+        timer("messaging.session.borrow", success).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    public void sessionCreated(long start, boolean success) {
+        timer("messaging.session.create", success).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    public void producerCreated(String destination, long start, boolean success) {
+        timer("messaging.producer.create", success, "destination", destinationTag(destination)).record(System.nanoTime() - start,
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param destination
+     *            destination name including the prefix
+     * @param operation
+     *            one of the {@code OPERATION_} constants
+     * @param start
+     *            see {@link #start()}
+     * @param bytes
+     *            payload size, negative if unknown
+     * @param success
+     *            false if the send failed
+     */
+    public void sent(String destination, String operation, long start, long bytes, boolean success) {
+        String destinationTag = destinationTag(destination);
+        timer("messaging.send", success, "destination", destinationTag, "operation", operation).record(System.nanoTime() - start,
+                TimeUnit.NANOSECONDS);
+        if (success && bytes >= 0) {
+            payloadSize(destinationTag, "out").record(bytes);
+        }
+    }
+
+    public void committed(String destination, long start, boolean success) {
+        timer("messaging.commit", success, "destination", destinationTag(destination)).record(System.nanoTime() - start,
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records one receive call, which may have returned several or no
+     * messages. The size of each message is recorded with
+     * {@link #receivedPayload(String, long)}.
+     */
+    public void received(String destination, String operation, long start, boolean success) {
+        timer("messaging.receive", success, "destination", destinationTag(destination), "operation", operation).record(System.nanoTime() - start,
+                TimeUnit.NANOSECONDS);
+    }
+
+    public void receivedPayload(String destination, long bytes) {
+        payloadSize(destinationTag(destination), "in").record(bytes);
+    }
+
+    public void handled(String destination, long start, boolean success) {
+        timer("messaging.handle", success, "destination", destinationTag(destination)).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    public void rateLimited(String destination, String scope) {
+        registry.counter("messaging.ratelimit.rejected", "destination", destinationTag(destination), "scope", scope).increment();
+    }
+
+    public void acknowledged(String destination, String operation, long start, boolean success) {
+        timer("messaging.ack", success, "destination", destinationTag(destination), "operation", operation)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Registers a gauge which reads the current value from the source, e.g.
+     * the number of active sessions.
+     */
+    public <T> void gauge(String name, T source, ToDoubleFunction<T> value, String... tags) {
+        Gauge.builder(name, source, value).tags(tags).register(registry);
+    }
+
+    /**
+     * Registers a counter which reads the current count from the source, e.g.
+     * producer cache hits.
+     */
+    public <T> void counter(String name, T source, ToDoubleFunction<T> count, String... tags) {
+        FunctionCounter.builder(name, source, count).tags(tags).register(registry);
+    }
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    private Timer timer(String name, boolean success, String... tags) {
+        return Timer.builder(name).tags(tags).tag("outcome", success ? "success" : "error").publishPercentileHistogram(histogram)
+                .register(registry);
+    }
+
+    private DistributionSummary payloadSize(String destinationTag, String direction) {
+        return DistributionSummary.builder("messaging.payload.size").baseUnit("bytes").tag("destination", destinationTag)
+                .tag("direction", direction).publishPercentileHistogram(histogram).minimumExpectedValue(MIN_PAYLOAD_SIZE)
+                .maximumExpectedValue(MAX_PAYLOAD_SIZE).register(registry);
+    }
+
+    private String destinationTag(String destination) {
+        if (destinations.contains(destination)) {
+            return destination;
+        }
+        if (destinations.size() >= maxDestinations) {
+            return OTHER_DESTINATION;
+        }
+        synchronized (destinations) {
+            if (destinations.contains(destination) || destinations.size() < maxDestinations) {
+                destinations.add(destination);
+                return destination;
+            }
+        }
+        return OTHER_DESTINATION;
+    }
+}
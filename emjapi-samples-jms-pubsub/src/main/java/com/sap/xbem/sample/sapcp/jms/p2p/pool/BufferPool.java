@@ -0,0 +1,58 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.pool;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size byte arrays used to copy message bodies from and to
+ * streams. Instead of allocating a new array per request, arrays are handed
+ * back and reused. At most {@code maxIdle} arrays are kept, the rest is left to
+ * the garbage collector.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxIdle;
+    private final Queue<byte[]> idleBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * @param bufferSize
+     *            size of each buffer in bytes
+     * @param maxIdle
+     *            maximum number of buffers kept for reuse
+     */
+    public BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = Math.max(512, bufferSize);
+        this.maxIdle = Math.max(0, maxIdle);
+    }
+
+    /**
+     * @return a buffer of {@link #getBufferSize()} bytes, hand it back via
+     *         {@link #release(byte[])}
+     */
+    public byte[] acquire() {
+        byte[] buffer = idleBuffers.poll();
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+        idleCount.decrementAndGet();
+        return buffer;
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer.length != bufferSize) {
+            return;
+        }
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idleBuffers.offer(buffer);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,14 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.pool;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+/**
+ * Creates a {@link Destination} on a session, e.g. {@code Session::createQueue}.
+ */
+@FunctionalInterface
+public interface DestinationFactory {
+
+    Destination create(Session session, String name) throws JMSException;
+}
@@ -0,0 +1,661 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.pool;
+
+import java.net.URI;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.qpid.jms.JmsConnection;
+import org.apache.qpid.jms.JmsConnectionListener;
+import org.apache.qpid.jms.exceptions.JmsConnectionFailedException;
+import org.apache.qpid.jms.message.JmsInboundMessageDispatch;
+import org.apache.qpid.jms.provider.exceptions.ProviderConnectionResourceNotFoundException;
+import org.apache.qpid.jms.provider.exceptions.ProviderConnectionSecurityException;
+import org.apache.qpid.jms.provider.exceptions.ProviderIOException;
+import org.apache.qpid.jms.provider.exceptions.ProviderInvalidClientIDException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServicePoolProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+
+/**
+ * Pool of long-lived connections and sessions on top of the
+ * {@link com.sap.cloud.servicesdk.xbem.extension.sapcp.jms.MessagingServiceJmsConnectionFactory}.
+ * <p>
+ * Creating a connection means an AMQP handshake and a token request, therefore
+ * connections are shared and only created once. A {@link Connection} is thread
+ * safe, a {@link Session} is not. Sessions are checked out exclusively via
+ * {@link #borrowSession(int)} and handed back by closing the
+ * {@link PooledSession}.
+ * <p>
+ * Receive calls wait for messages while they hold a session. They borrow via
+ * {@link #borrowReceiveSession(int)}, which takes an additional permit of
+ * {@link MessagingServicePoolProperties#getMaxReceiveSessions()}, so waiting
+ * receivers can't take all sessions from the senders.
+ * <p>
+ * Sessions and connections which were not used for
+ * {@link MessagingServicePoolProperties#getIdleTimeout()} are closed before the
+ * broker closes them. A connection reporting an error via its
+ * {@link javax.jms.ExceptionListener} (e.g. failover gave up) is marked as
+ * broken, its sessions are dropped and the next borrow opens a new connection.
+ * <p>
+ * A connection is opened outside of the {@link ReentrantLock} which guards the
+ * connection slots, the handshake may take as long as the failover. The first
+ * borrower of a missing or broken slot opens it, further borrowers of that
+ * slot wait for the same attempt and share its outcome. Connections are
+ * opened one at a time through a separate lock, concurrent handshakes stall
+ * each other when a burst of borrowers hits an empty pool. Borrowers of open
+ * connections and the eviction are not held up. Threads never block while holding a
+ * monitor, so a virtual thread waiting for the handshake unmounts from its
+ * carrier instead of pinning it.
+ */
+public class MessagingServiceConnectionPool implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessagingServiceConnectionPool.class);
+
+    private final ConnectionFactory connectionFactory;
+    private final long borrowTimeout;
+    private final long idleTimeout;
+    private final int producerCacheSize;
+    private final int maxSessions;
+    private final MessagingMetrics metrics;
+    private final ProducerCache.Statistics producerCacheStatistics = new ProducerCache.Statistics();
+    private final PooledConnection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final ReentrantLock connectionLock = new ReentrantLock();
+    private final ReentrantLock openLock = new ReentrantLock(); // serializes the handshakes
+    private final Map<Integer, CompletableFuture<PooledConnection>> openingConnections = new HashMap<>(); // guarded by connectionLock
+    private final Semaphore sessionPermits;
+    private final Semaphore receivePermits;
+    private final Map<Integer, Deque<PooledSession>> idleSessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    public MessagingServiceConnectionPool(ConnectionFactory connectionFactory, MessagingServicePoolProperties properties) {
+        this(connectionFactory, properties, MessagingMetrics.noRegistry());
+    }
+
+    public MessagingServiceConnectionPool(ConnectionFactory connectionFactory, MessagingServicePoolProperties properties, MessagingMetrics metrics) {
+        this.connectionFactory = connectionFactory;
+        this.metrics = metrics;
+        this.borrowTimeout = properties.getBorrowTimeout();
+        this.idleTimeout = properties.getIdleTimeout();
+        this.producerCacheSize = properties.getProducerCacheSize();
+        this.connections = new PooledConnection[Math.max(1, properties.getConnections())];
+        this.maxSessions = Math.max(1, properties.getMaxSessions());
+        this.sessionPermits = new Semaphore(maxSessions, true);
+        this.receivePermits = new Semaphore(Math.max(1, Math.min(maxSessions, properties.getMaxReceiveSessions())), true);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "messaging-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, properties.getEvictionInterval(), properties.getEvictionInterval(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs the callback with a non transacted, auto acknowledged session.
+     *
+     * @see #execute(int, SessionCallback)
+     */
+    public <T> T execute(SessionCallback<T> callback) throws JMSException {
+        return execute(Session.AUTO_ACKNOWLEDGE, callback);
+    }
+
+    /**
+     * Borrows a session, runs the callback and hands the session back. If the
+     * callback fails, the session is discarded instead of being reused.
+     *
+     * @param acknowledgeMode
+     *            acknowledge mode of the session, {@link Session#SESSION_TRANSACTED}
+     *            for a transacted session
+     * @param callback
+     *            work to do with the session
+     * @return the result of the callback
+     * @throws JMSException
+     *             if no session could be borrowed or the callback failed
+     */
+    public <T> T execute(int acknowledgeMode, SessionCallback<T> callback) throws JMSException {
+        return execute(borrowSession(acknowledgeMode), callback);
+    }
+
+    /**
+     * Same as {@link #execute(int, SessionCallback)} for a callback which waits
+     * for messages, the session is borrowed via
+     * {@link #borrowReceiveSession(int)}.
+     */
+    public <T> T executeReceive(int acknowledgeMode, SessionCallback<T> callback) throws JMSException {
+        return execute(borrowReceiveSession(acknowledgeMode), callback);
+    }
+
+    private <T> T execute(PooledSession borrowedSession, SessionCallback<T> callback) throws JMSException {
+        try (PooledSession pooledSession = borrowedSession) {
+            try {
+                return callback.doInSession(pooledSession);
+            } catch (JMSException | RuntimeException e) {
+                pooledSession.invalidate();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Checks out a session with the given acknowledge mode. The caller owns the
+     * session until the returned {@link PooledSession} is closed.
+     *
+     * @param acknowledgeMode
+     *            acknowledge mode of the session, {@link Session#SESSION_TRANSACTED}
+     *            for a transacted session
+     * @return the checked out session
+     * @throws JMSException
+     *             if the pool is exhausted for longer than the borrow timeout or
+     *             no session could be created
+     */
+    public PooledSession borrowSession(int acknowledgeMode) throws JMSException {
+        return borrowSession(acknowledgeMode, false);
+    }
+
+    /**
+     * Checks out a session for a caller which waits for messages on it. Takes a
+     * permit of {@link MessagingServicePoolProperties#getMaxReceiveSessions()}
+     * first, so the remaining sessions stay available for sends.
+     *
+     * @param acknowledgeMode
+     *            acknowledge mode of the session
+     * @return the checked out session
+     * @throws JMSException
+     *             if too many receivers wait for longer than the borrow timeout
+     *             or no session could be borrowed
+     */
+    public PooledSession borrowReceiveSession(int acknowledgeMode) throws JMSException {
+        try {
+            if (!receivePermits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new JMSException("Timed out after " + borrowTimeout + "ms waiting for a pooled session to receive, too many receivers wait.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JMSException("Interrupted while waiting for a pooled session.");
+        }
+        try {
+            return borrowSession(acknowledgeMode, true);
+        } catch (JMSException | RuntimeException e) {
+            receivePermits.release();
+            throw e;
+        }
+    }
+
+    private PooledSession borrowSession(int acknowledgeMode, boolean receiving) throws JMSException {
+        if (closed) {
+            throw new javax.jms.IllegalStateException("The connection pool is closed.");
+        }
+        long start = metrics.start();
+        try {
+            if (!sessionPermits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                metrics.sessionBorrowed(start, false);
+                throw new JMSException("Timed out after " + borrowTimeout + "ms waiting for a pooled session.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            metrics.sessionBorrowed(start, false);
+            throw new JMSException("Interrupted while waiting for a pooled session.");
+        }
+        try {
+            PooledSession pooledSession = pollIdleSession(acknowledgeMode);
+            if (pooledSession == null) {
+                pooledSession = createSession(acknowledgeMode);
+            }
+            pooledSession.markCheckedOut(receiving);
+            metrics.sessionBorrowed(start, true);
+            return pooledSession;
+        } catch (JMSException | RuntimeException e) {
+            sessionPermits.release();
+            metrics.sessionBorrowed(start, false);
+            throw e;
+        }
+    }
+
+    /**
+     * @return {@code true} if a pooled connection lost the broker and is
+     *         failing over or gave up, sends would block or fail right now
+     */
+    public boolean isInterrupted() {
+        for (PooledConnection pooledConnection : connections) {
+            if (pooledConnection != null && (pooledConnection.isBroken() || pooledConnection.isInterrupted())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param failure
+     *            exception of a call on a pooled session
+     * @return {@code true} if the call failed because the broker can't be
+     *         reached, i.e. the connection could not be opened or was lost, or
+     *         a pooled connection is failing over. {@code false} if the broker
+     *         rejected the call, e.g. for an unknown destination or missing
+     *         permissions, then trying again later doesn't help.
+     */
+    public boolean isUnreachable(JMSException failure) {
+        return isInterrupted() || isConnectionFailure(failure);
+    }
+
+    /**
+     * @return number of sessions which are checked out at the moment
+     */
+    public int getActiveSessions() {
+        return maxSessions - sessionPermits.availablePermits();
+    }
+
+    /**
+     * @return number of sessions which wait in the pool to be borrowed
+     */
+    public int getIdleSessions() {
+        int idle = 0;
+        for (Deque<PooledSession> sessions : idleSessions.values()) {
+            idle += sessions.size();
+        }
+        return idle;
+    }
+
+    /**
+     * @return number of sends which could reuse a cached producer
+     */
+    public long getProducerCacheHits() {
+        return producerCacheStatistics.getHits();
+    }
+
+    /**
+     * @return number of sends which had to create a new producer
+     */
+    public long getProducerCacheMisses() {
+        return producerCacheStatistics.getMisses();
+    }
+
+    /**
+     * @return number of producers closed because a session's cache was full
+     */
+    public long getProducerCacheEvictions() {
+        return producerCacheStatistics.getEvictions();
+    }
+
+    /**
+     * Closes all sessions and connections. Sessions which are checked out at
+     * that moment are closed together with their connection.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (Deque<PooledSession> sessions : idleSessions.values()) {
+            PooledSession pooledSession;
+            while ((pooledSession = sessions.poll()) != null) {
+                closeSession(pooledSession);
+            }
+        }
+        connectionLock.lock();
+        try {
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] != null) {
+                    connections[i].close();
+                    connections[i] = null;
+                }
+            }
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    void release(PooledSession pooledSession) {
+        pooledSession.markReleased();
+        if (closed) {
+            closeSession(pooledSession);
+        } else {
+            // LIFO, so that hot sessions are reused and rarely used ones age out
+            idleSessions.computeIfAbsent(pooledSession.getAcknowledgeMode(), mode -> new ConcurrentLinkedDeque<>()).push(pooledSession);
+        }
+        releasePermits(pooledSession);
+    }
+
+    void discard(PooledSession pooledSession) {
+        closeSession(pooledSession);
+        releasePermits(pooledSession);
+    }
+
+    private void releasePermits(PooledSession pooledSession) {
+        if (pooledSession.isReceiving()) {
+            receivePermits.release();
+        }
+        sessionPermits.release();
+    }
+
+    private PooledSession pollIdleSession(int acknowledgeMode) {
+        Deque<PooledSession> sessions = idleSessions.get(acknowledgeMode);
+        if (sessions == null) {
+            return null;
+        }
+        PooledSession pooledSession;
+        while ((pooledSession = sessions.poll()) != null) {
+            if (!pooledSession.getConnection().isBroken()) {
+                return pooledSession;
+            }
+            closeSession(pooledSession);
+        }
+        return null;
+    }
+
+    private PooledSession createSession(int acknowledgeMode) throws JMSException {
+        PooledConnection pooledConnection = acquireConnection();
+        long start = metrics.start();
+        try {
+            Session session = acknowledgeMode == Session.SESSION_TRANSACTED ? pooledConnection.connection.createSession(true, Session.SESSION_TRANSACTED)
+                    : pooledConnection.connection.createSession(false, acknowledgeMode);
+            metrics.sessionCreated(start, true);
+            return new PooledSession(this, pooledConnection, session, acknowledgeMode, producerCacheSize, producerCacheStatistics, metrics);
+        } catch (JMSException | RuntimeException e) {
+            metrics.sessionCreated(start, false);
+            pooledConnection.sessionClosed();
+            throw e;
+        }
+    }
+
+    /**
+     * Picks the next connection round-robin and registers a new session on it.
+     * Missing or broken connections are (re)created on the way, outside of the
+     * lock.
+     */
+    private PooledConnection acquireConnection() throws JMSException {
+        int index = Math.floorMod(nextConnection.getAndIncrement(), connections.length);
+        while (true) {
+            CompletableFuture<PooledConnection> opening;
+            boolean opener = false;
+            connectionLock.lock();
+            try {
+                if (closed) {
+                    throw new javax.jms.IllegalStateException("The connection pool is closed.");
+                }
+                PooledConnection pooledConnection = connections[index];
+                if (pooledConnection != null && !pooledConnection.isBroken()) {
+                    pooledConnection.sessionOpened();
+                    return pooledConnection;
+                }
+                opening = openingConnections.get(index);
+                if (opening == null) {
+                    opening = new CompletableFuture<>();
+                    openingConnections.put(index, opening);
+                    opener = true;
+                }
+            } finally {
+                connectionLock.unlock();
+            }
+            if (opener) {
+                openConnection(index, opening);
+            }
+            awaitConnection(opening); // then take the published connection, unless it broke already
+        }
+    }
+
+    private void openConnection(int index, CompletableFuture<PooledConnection> opening) {
+        long start = metrics.start();
+        PooledConnection pooledConnection = null;
+        Exception failure = null;
+        openLock.lock();
+        try {
+            pooledConnection = new PooledConnection(connectionFactory.createConnection());
+            metrics.connectionCreated(start, true);
+        } catch (JMSException | RuntimeException e) {
+            metrics.connectionCreated(start, false);
+            failure = e;
+        } finally {
+            openLock.unlock();
+        }
+        connectionLock.lock();
+        try {
+            openingConnections.remove(index);
+            if (pooledConnection != null && closed) {
+                pooledConnection.close();
+                pooledConnection = null;
+                failure = new javax.jms.IllegalStateException("The connection pool is closed.");
+            }
+            if (pooledConnection != null) {
+                PooledConnection previous = connections[index];
+                if (previous != null) {
+                    previous.retire();
+                }
+                connections[index] = pooledConnection;
+                LOG.info("Opened pooled connection {}.", index);
+            }
+        } finally {
+            connectionLock.unlock();
+        }
+        if (failure != null) {
+            opening.completeExceptionally(failure);
+        } else {
+            opening.complete(pooledConnection);
+        }
+    }
+
+    private static boolean isConnectionFailure(Throwable failure) {
+        Throwable cause = failure;
+        for (int depth = 0; cause != null && depth < 16; depth++) {
+            if (cause instanceof JmsConnectionFailedException) {
+                return true;
+            }
+            if (cause instanceof ProviderIOException) {
+                // the broker closed the connection on purpose, it would do so again
+                return !(cause instanceof ProviderConnectionSecurityException || cause instanceof ProviderInvalidClientIDException
+                        || cause instanceof ProviderConnectionResourceNotFoundException);
+            }
+            Throwable next = cause.getCause();
+            if (next == null && cause instanceof JMSException) {
+                next = ((JMSException) cause).getLinkedException();
+            }
+            cause = next;
+        }
+        return false;
+    }
+
+    private static void awaitConnection(CompletableFuture<PooledConnection> opening) throws JMSException {
+        try {
+            opening.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JMSException("Interrupted while waiting for a pooled connection.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof JMSException) {
+                throw (JMSException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            JMSException jmsException = new JMSException("Could not open a pooled connection.");
+            jmsException.setLinkedException(e);
+            throw jmsException;
+        }
+    }
+
+    private void closeSession(PooledSession pooledSession) {
+        try {
+            pooledSession.getSession().close();
+        } catch (JMSException | RuntimeException e) {
+            LOG.debug("Could not close pooled session.", e);
+        } finally {
+            pooledSession.getConnection().sessionClosed();
+        }
+    }
+
+    private void evictIdle() {
+        try {
+            long threshold = System.currentTimeMillis() - idleTimeout;
+            for (Deque<PooledSession> sessions : idleSessions.values()) {
+                Iterator<PooledSession> iterator = sessions.descendingIterator();
+                while (iterator.hasNext()) {
+                    PooledSession pooledSession = iterator.next();
+                    // only the thread which removes the session from the deque may close it
+                    if ((pooledSession.getLastReleased() < threshold || pooledSession.getConnection().isBroken())
+                            && sessions.removeFirstOccurrence(pooledSession)) {
+                        closeSession(pooledSession);
+                    }
+                }
+            }
+            connectionLock.lock();
+            try {
+                for (int i = 0; i < connections.length; i++) {
+                    PooledConnection pooledConnection = connections[i];
+                    if (pooledConnection != null && pooledConnection.isIdleSince(threshold)) {
+                        LOG.info("Closing idle pooled connection {}.", i);
+                        pooledConnection.close();
+                        connections[i] = null;
+                    }
+                }
+            } finally {
+                connectionLock.unlock();
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Eviction of idle sessions failed.", e);
+        }
+    }
+
+    /**
+     * A shared connection and the number of sessions currently open on it.
+     */
+    static class PooledConnection {
+
+        private final Connection connection;
+        private final AtomicInteger openSessions = new AtomicInteger();
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean broken;
+        private volatile boolean interrupted;
+        private volatile boolean retired;
+
+        PooledConnection(Connection connection) throws JMSException {
+            this.connection = connection;
+            connection.setExceptionListener(e -> {
+                LOG.warn("Pooled connection failed, it will be replaced with the next request.", e);
+                broken = true;
+            });
+            if (connection instanceof JmsConnection) {
+                ((JmsConnection) connection).addConnectionListener(new InterruptionListener());
+            }
+            try {
+                connection.start();
+            } catch (JMSException e) {
+                close();
+                throw e;
+            }
+        }
+
+        boolean isBroken() {
+            return broken;
+        }
+
+        boolean isInterrupted() {
+            return interrupted;
+        }
+
+        void sessionOpened() {
+            openSessions.incrementAndGet();
+            lastUsed = System.currentTimeMillis();
+        }
+
+        void sessionClosed() {
+            lastUsed = System.currentTimeMillis();
+            if (openSessions.decrementAndGet() <= 0 && retired) {
+                close();
+            }
+        }
+
+        /**
+         * Called once the connection has been replaced. It is closed as soon as
+         * the last session still running on it is handed back.
+         */
+        void retire() {
+            retired = true;
+            if (openSessions.get() <= 0) {
+                close();
+            }
+        }
+
+        boolean isIdleSince(long threshold) {
+            return openSessions.get() <= 0 && (broken || lastUsed < threshold);
+        }
+
+        void close() {
+            try {
+                connection.close();
+            } catch (JMSException | RuntimeException e) {
+                LOG.debug("Could not close pooled connection.", e);
+            }
+        }
+
+        /**
+         * Tracks the failover of the client, which reconnects in the background
+         * while sends on the connection wait.
+         */
+        private class InterruptionListener implements JmsConnectionListener {
+
+            @Override
+            public void onConnectionInterrupted(URI remoteURI) {
+                LOG.warn("Pooled connection to {} was interrupted, failing over.", remoteURI);
+                interrupted = true;
+            }
+
+            @Override
+            public void onConnectionRestored(URI remoteURI) {
+                LOG.info("Pooled connection to {} was restored.", remoteURI);
+                interrupted = false;
+            }
+
+            @Override
+            public void onConnectionEstablished(URI remoteURI) {
+                // nothing to do, the connection is used once it has been created
+            }
+
+            @Override
+            public void onConnectionFailure(Throwable error) {
+                // reported to the exception listener as well
+            }
+
+            @Override
+            public void onInboundMessage(JmsInboundMessageDispatch envelope) {
+                // not of interest
+            }
+
+            @Override
+            public void onSessionClosed(Session session, Throwable cause) {
+                // not of interest
+            }
+
+            @Override
+            public void onConsumerClosed(MessageConsumer consumer, Throwable cause) {
+                // not of interest
+            }
+
+            @Override
+            public void onProducerClosed(MessageProducer producer, Throwable cause) {
+                // not of interest
+            }
+        }
+    }
+}
@@ -1,18 +1,55 @@
 package com.sap.xbem.sample.sapcp.jms.p2p.services;
 
-import com.sap.cloud.servicesdk.xbem.extension.sapcp.jms.MessagingServiceJmsConnectionFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sap.xbem.sample.sapcp.jms.p2p.async.AsyncMessageSender;
+import com.sap.xbem.sample.sapcp.jms.p2p.batch.BatchSendResult;
+import com.sap.xbem.sample.sapcp.jms.p2p.batch.MessageBatchReader;
+import com.sap.xbem.sample.sapcp.jms.p2p.batch.MessageBatchSender;
+import com.sap.xbem.sample.sapcp.jms.p2p.binary.BinaryMessageTransfer;
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCodec;
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCompressor;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceBatchProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceFanOutProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServicePoolProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceReceiveProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceStreamProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.consumer.MessageBatchReceiver;
+import com.sap.xbem.sample.sapcp.jms.p2p.consumer.MessageStreamer;
+import com.sap.xbem.sample.sapcp.jms.p2p.dedup.MessageDeduplicator;
+import com.sap.xbem.sample.sapcp.jms.p2p.fanout.FanOutResult;
+import com.sap.xbem.sample.sapcp.jms.p2p.fanout.MessageFanOutSender;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.LruCache;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.MessagingServiceConnectionPool;
+import com.sap.xbem.sample.sapcp.jms.p2p.ratelimit.SendRateLimiter;
+import com.sap.xbem.sample.sapcp.jms.p2p.spool.MessageSpool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import javax.jms.*;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 @RestController(MessagingServiceRestController.ROOT_PATH)
 public class MessagingServiceRestController {
@@ -21,20 +58,71 @@ public class MessagingServiceRestController {
     public static final String ROOT_PATH = "/";
     private static final String TOPIC_PATH = "topic/{topicName}/";
     private static final String QUEUE_PATH = "queue/{queueName}/";
+    private static final String TOPICS_PATH = "topics/";
     private static final String MESSAGE_PATH = "message";
+    private static final String MESSAGES_PATH = "messages";
+    private static final String ASYNC_PATH = "/async";
+    private static final String STREAM_PATH = "/stream";
+    private static final String BINARY_PATH = "/binary";
     private static final String ENCODED_PATH = "encode";
     private static final String MESSAGE_TOPIC_REST_PATH = TOPIC_PATH + MESSAGE_PATH;
+    private static final String MESSAGES_TOPIC_REST_PATH = TOPIC_PATH + MESSAGES_PATH;
+    private static final String MESSAGE_TOPIC_ASYNC_REST_PATH = MESSAGE_TOPIC_REST_PATH + ASYNC_PATH;
+    private static final String MESSAGE_TOPIC_BINARY_REST_PATH = MESSAGE_TOPIC_REST_PATH + BINARY_PATH;
+    private static final String MESSAGE_TOPICS_REST_PATH = TOPICS_PATH + MESSAGE_PATH;
     private static final String MESSAGE_QUEUE_REST_PATH = QUEUE_PATH + MESSAGE_PATH;
+    private static final String MESSAGE_QUEUE_BINARY_REST_PATH = MESSAGE_QUEUE_REST_PATH + BINARY_PATH;
+    private static final String MESSAGES_QUEUE_REST_PATH = QUEUE_PATH + MESSAGES_PATH;
+    private static final String MESSAGES_QUEUE_STREAM_REST_PATH = MESSAGES_QUEUE_REST_PATH + STREAM_PATH;
     private static final String MESSAGE_ENCODING_REST_PATH = ENCODED_PATH;
 
     private static final String TOPIC_PREFIX = "topic:"; // mandatory prefix to bind a topic.
     private static final String QUEUE_PREFIX = "queue:"; // mandatory prefix to bind a queue. Note that you must not create a queue on the broker with this prefix!
 
-    private final MessagingServiceJmsConnectionFactory connectionFactory;
+    private final MessagingServiceConnectionPool connectionPool;
+    private final Map<String, String> decodedValues; // the same few destination names are decoded over and over again
+    private final MessageBatchSender batchSender;
+    private final MessagingServiceBatchProperties batchProperties;
+    private final ObjectMapper objectMapper;
+    private final AsyncMessageSender asyncSender;
+    private final MessageStreamer messageStreamer;
+    private final MessagingServiceStreamProperties streamProperties;
+    private final MessageBatchReceiver batchReceiver;
+    private final MessagingServiceReceiveProperties receiveProperties;
+    private final BinaryMessageTransfer binaryTransfer;
+    private final MessagingMetrics metrics;
+    private final MessageSpool messageSpool;
+    private final MessageCompressor compressor;
+    private final SendRateLimiter rateLimiter;
+    private final MessageDeduplicator deduplicator;
+    private final MessageFanOutSender fanOutSender;
+    private final MessagingServiceFanOutProperties fanOutProperties;
 
     @Autowired
-    private MessagingServiceRestController(MessagingServiceJmsConnectionFactory messagingServiceJmsConnectionFactory) {
-        this.connectionFactory = messagingServiceJmsConnectionFactory;
+    private MessagingServiceRestController(MessagingServiceConnectionPool messagingServiceConnectionPool, MessagingServicePoolProperties poolProperties,
+            MessageBatchSender messageBatchSender, MessagingServiceBatchProperties batchProperties, ObjectMapper objectMapper,
+            AsyncMessageSender asyncMessageSender, MessageStreamer messageStreamer, MessagingServiceStreamProperties streamProperties,
+            MessageBatchReceiver messageBatchReceiver, MessagingServiceReceiveProperties receiveProperties, BinaryMessageTransfer binaryMessageTransfer,
+            MessagingMetrics messagingMetrics, MessageSpool messageSpool, MessageCompressor messageCompressor, SendRateLimiter sendRateLimiter,
+            MessageFanOutSender messageFanOutSender, MessagingServiceFanOutProperties fanOutProperties, MessageDeduplicator messageDeduplicator) {
+        this.connectionPool = messagingServiceConnectionPool;
+        this.decodedValues = Collections.synchronizedMap(new LruCache<>(poolProperties.getDestinationNameCacheSize()));
+        this.batchSender = messageBatchSender;
+        this.batchProperties = batchProperties;
+        this.objectMapper = objectMapper;
+        this.asyncSender = asyncMessageSender;
+        this.messageStreamer = messageStreamer;
+        this.streamProperties = streamProperties;
+        this.batchReceiver = messageBatchReceiver;
+        this.receiveProperties = receiveProperties;
+        this.binaryTransfer = binaryMessageTransfer;
+        this.metrics = messagingMetrics;
+        this.messageSpool = messageSpool;
+        this.compressor = messageCompressor;
+        this.rateLimiter = sendRateLimiter;
+        this.deduplicator = messageDeduplicator;
+        this.fanOutSender = messageFanOutSender;
+        this.fanOutProperties = fanOutProperties;
     }
 
     /**
@@ -50,7 +138,12 @@ public class MessagingServiceRestController {
     }
 
     /**
-     * Publishes a message to a given topic.
+     * Publishes a message to a given topic. If the spool is enabled and the
+     * broker can't be reached, the message is spooled and published later on,
+     * then the response status is 202. Answers 404 if the broker rejects the
+     * topic, 503 if it can't be reached and the message could not be spooled.
+     * Answers 429 with a Retry-After header if the rate limit of the topic is
+     * exceeded.
      *
      * @param message   to publish
      * @param topicName where message will be published
@@ -65,54 +158,308 @@ public class MessagingServiceRestController {
         }
 
         LOG.info("Sending message={} to topic={}", message, topicName);
-        try (Connection connection = connectionFactory.createConnection();
-                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE)) {
-            connection.start();
-            Topic topic = session.createTopic(TOPIC_PREFIX + topicName);
-            BytesMessage byteMessage = session.createBytesMessage();
-            byteMessage.writeBytes(message.getBytes());
-            MessageProducer producer = session.createProducer(topic);
-            producer.send(byteMessage);
-            return ResponseEntity.status(HttpStatus.CREATED).body("message=" + message + " sent to topic=" + topicName);
+        String destinationName = topicName;
+        long retryAfter = rateLimiter.tryAcquire(TOPIC_PREFIX + destinationName);
+        if (retryAfter > 0) {
+            return tooManyRequests(retryAfter, "Too many messages for topic=" + destinationName);
+        }
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        // spooled messages are sent first, later messages must not overtake them
+        if (messageSpool.spoolIfPending(TOPIC_PREFIX + destinationName, payload)) {
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body("message=" + message + " spooled for topic=" + destinationName);
+        }
+        long sendStart = metrics.start();
+        try {
+            // the session is borrowed from the pool, the connection is shared and stays open
+            ResponseEntity<String> response = connectionPool.execute(pooledSession -> {
+                // the body is compressed if configured for the topic, see messaging.compression
+                BytesMessage byteMessage = compressor.createMessage(pooledSession.getSession(), TOPIC_PREFIX + destinationName, payload);
+                // the topic and producer are cached per session
+                MessageProducer producer = pooledSession.getProducer(TOPIC_PREFIX + destinationName, Session::createTopic);
+                long start = metrics.start();
+                try {
+                    producer.send(byteMessage);
+                    metrics.sent(TOPIC_PREFIX + destinationName, MessagingMetrics.OPERATION_SYNC, start, payload.length, true);
+                } catch (JMSException | RuntimeException e) {
+                    metrics.sent(TOPIC_PREFIX + destinationName, MessagingMetrics.OPERATION_SYNC, start, payload.length, false);
+                    throw e;
+                }
+                return ResponseEntity.status(HttpStatus.CREATED).body("message=" + message + " sent to topic=" + destinationName);
+            });
+            rateLimiter.sent(TOPIC_PREFIX + destinationName, sendStart, true);
+            return response;
         } catch (JMSException e) {
+            rateLimiter.sent(TOPIC_PREFIX + destinationName, sendStart, false);
+            if (messageSpool.spoolIfUnreachable(TOPIC_PREFIX + destinationName, payload, e)) {
+                LOG.warn("Could not send message={} to topic={}, it has been spooled. Error={}", message, topicName, e.toString());
+                return ResponseEntity.status(HttpStatus.ACCEPTED).body("message=" + message + " spooled for topic=" + destinationName);
+            }
             LOG.error("Could not send message={} to topic={}.", message, topicName, e);
+            return ResponseEntity.status(sendFailureStatus(e)).body("Could not send message. Error=" + e);
+        }
+    }
+
+    /**
+     * Publishes a message to a given topic without blocking the request thread
+     * until the broker confirmed it. The response is written once the
+     * confirmation arrived. If too many sends are unconfirmed the request is
+     * rejected with status 503, above the rate limit of the topic with status
+     * 429.
+     *
+     * @param message   to publish
+     * @param topicName where message will be published
+     * @return the message and the topic which has been sent
+     */
+    @PostMapping(MESSAGE_TOPIC_ASYNC_REST_PATH)
+    public Mono<ResponseEntity<String>> sendMessageAsync(@RequestBody String message, @PathVariable String topicName) {
+        String destinationName;
+        try {
+            destinationName = decodeValue(topicName);
+        } catch (UnsupportedEncodingException e1) {
+            return Mono.just(ResponseEntity.badRequest().body("Unable to decode the topicname"));
+        }
+
+        long retryAfter = rateLimiter.tryAcquire(TOPIC_PREFIX + destinationName);
+        if (retryAfter > 0) {
+            return Mono.just(tooManyRequests(retryAfter, "Too many messages for topic=" + destinationName));
+        }
+
+        LOG.debug("Sending message={} asynchronously to topic={}", message, destinationName);
+        long start = metrics.start();
+        return asyncSender.send(TOPIC_PREFIX + destinationName, Session::createTopic, message.getBytes(StandardCharsets.UTF_8))
+                .doOnSuccess(v -> rateLimiter.sent(TOPIC_PREFIX + destinationName, start, true))
+                .doOnError(e -> rateLimiter.sent(TOPIC_PREFIX + destinationName, start, false))
+                .thenReturn(ResponseEntity.status(HttpStatus.CREATED).body("message=" + message + " sent to topic=" + destinationName))
+                .onErrorResume(RejectedExecutionException.class, e -> Mono.just(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage())))
+                .onErrorResume(e -> {
+                    LOG.error("Could not send message={} to topic={}.", message, destinationName, e);
+                    return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Could not send message. Error=" + e));
+                });
+    }
+
+    /**
+     * Publishes one message to several topics at once. The body is compressed
+     * once, the messages are sent in parallel on pooled sessions and the response
+     * lists the outcome per topic. A topic which is named twice is published to
+     * once. Topics above their rate limit are rejected, the others are sent
+     * anyway. If too many sends are unconfirmed, the topics without an
+     * in-flight permit are rejected as well. With transacted=true all messages are sent in one transaction, so
+     * either all topics get the message or none.
+     *
+     * @param message    to publish
+     * @param topicNames where message will be published, repeat the parameter per topic
+     * @param transacted optional, send all messages in one transaction
+     * @return the outcome per topic, status 201 if all topics got the message,
+     *         207 if some of them, 429 or 503 if all were rejected
+     */
+    @PostMapping(MESSAGE_TOPICS_REST_PATH)
+    public Mono<ResponseEntity<?>> sendMessageToTopics(@RequestBody String message, @RequestParam("topic") List<String> topicNames,
+            @RequestParam(defaultValue = "false") boolean transacted) {
+        // duplicates are dropped before the limit is checked, each topic gets the message once
+        Set<String> destinationNames = new LinkedHashSet<>();
+        for (String topicName : topicNames) {
+            if (topicName.trim().isEmpty()) {
+                return Mono.just(ResponseEntity.badRequest().body("Empty topic name"));
+            }
+            destinationNames.add(TOPIC_PREFIX + topicName.trim());
+        }
+        if (destinationNames.isEmpty() || destinationNames.size() > fanOutProperties.getMaxTopics()) {
+            return Mono.just(ResponseEntity.badRequest().body("Between 1 and " + fanOutProperties.getMaxTopics() + " topics are supported"));
+        }
+
+        LOG.debug("Sending message={} to topics={}, transacted={}", message, destinationNames, transacted);
+        return fanOutSender.send(new ArrayList<>(destinationNames), Session::createTopic, message.getBytes(StandardCharsets.UTF_8), transacted)
+                .map(result -> {
+                    LOG.info("Sent message to topics, sent={}, failed={}, rejected={}", result.getSent(), result.getFailed(), result.getRejected());
+                    HttpStatus status = fanOutStatus(result);
+                    return status == HttpStatus.TOO_MANY_REQUESTS ? tooManyRequests(result.getRetryAfter(), result)
+                            : ResponseEntity.status(status).body(result);
+                });
+    }
+
+    private HttpStatus fanOutStatus(FanOutResult result) {
+        if (result.getSent() == result.getTargets().size()) {
+            return HttpStatus.CREATED;
+        }
+        if (result.getSent() > 0) {
+            return HttpStatus.MULTI_STATUS;
+        }
+        if (result.getFailed() > 0) {
+            return HttpStatus.INTERNAL_SERVER_ERROR;
+        }
+        // rejected without a rate limit to wait for, i.e. too many sends in flight
+        return result.getRetryAfter() > 0 ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Publishes the request body as is to a given topic. The body is copied into the message in chunks,
+     * without converting it to a string. A body sent with {@code Content-Encoding} gzip or lz4 is stored
+     * compressed as it is, answers 400 if it does not start with the header of that codec. Answers 429 if the
+     * rate limit of the topic is exceeded.
+     *
+     * @param body            message body, any content
+     * @param topicName       where message will be published
+     * @param contentEncoding optional, codec the body is compressed with
+     * @return the number of bytes which have been sent
+     */
+    @PostMapping(path = MESSAGE_TOPIC_BINARY_REST_PATH, consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<String> sendBinaryMessage(InputStream body, @PathVariable String topicName,
+            @RequestHeader(name = HttpHeaders.CONTENT_ENCODING, required = false) String contentEncoding) {
+        try {
+            topicName = decodeValue(topicName);
+        } catch (UnsupportedEncodingException e) {
+            return ResponseEntity.badRequest().body("Unable to decode the topicname");
+        }
+        MessageCodec bodyCodec = MessageCodec.forName(contentEncoding);
+        if (bodyCodec == null) {
+            return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE).body("Unsupported Content-Encoding=" + contentEncoding);
+        }
+
+        long retryAfter = rateLimiter.tryAcquire(TOPIC_PREFIX + topicName);
+        if (retryAfter > 0) {
+            return tooManyRequests(retryAfter, "Too many messages for topic=" + topicName);
+        }
+
+        long start = metrics.start();
+        try {
+            long length = binaryTransfer.send(TOPIC_PREFIX + topicName, Session::createTopic, body, bodyCodec);
+            rateLimiter.sent(TOPIC_PREFIX + topicName, start, true);
+            LOG.info("Sent binary message of {} bytes to topic={}", length, topicName);
+            return ResponseEntity.status(HttpStatus.CREATED).body(length + " bytes sent to topic=" + topicName);
+        } catch (MessageFormatException e) {
+            rateLimiter.release(TOPIC_PREFIX + topicName); // not sent
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (JMSException | IOException e) {
+            if (e instanceof JMSException) { // a broken request body says nothing about the broker
+                rateLimiter.sent(TOPIC_PREFIX + topicName, start, false);
+            }
+            LOG.error("Could not send binary message to topic={}.", topicName, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Could not send message. Error=" + e);
         }
     }
 
+    /**
+     * Publishes a JSON array of messages to a given topic. The messages are sent
+     * on a transacted session which is committed every batchSize messages or
+     * every batchInterval milliseconds, whichever comes first.
+     *
+     * @param body          JSON array of messages, strings are sent as is
+     * @param topicName     where messages will be published
+     * @param batchSize     optional, overrides messaging.batch.size
+     * @param batchInterval optional, overrides messaging.batch.interval
+     * @return the counts per transaction and the offsets which could not be sent
+     */
+    @PostMapping(path = MESSAGES_TOPIC_REST_PATH, consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> sendMessages(InputStream body, @PathVariable String topicName, @RequestParam(required = false) Integer batchSize,
+            @RequestParam(required = false) Long batchInterval) {
+        return sendBatch(body, true, topicName, batchSize, batchInterval);
+    }
+
+    /**
+     * Same as {@link #sendMessages(InputStream, String, Integer, Long)} for a body
+     * with one JSON value per line (NDJSON).
+     */
+    @PostMapping(path = MESSAGES_TOPIC_REST_PATH, consumes = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<?> sendMessagesNdjson(InputStream body, @PathVariable String topicName, @RequestParam(required = false) Integer batchSize,
+            @RequestParam(required = false) Long batchInterval) {
+        return sendBatch(body, false, topicName, batchSize, batchInterval);
+    }
+
+    private ResponseEntity<?> sendBatch(InputStream body, boolean array, String topicName, Integer batchSize, Long batchInterval) {
+        try {
+            topicName = decodeValue(topicName);
+        } catch (UnsupportedEncodingException e1) {
+            return ResponseEntity.badRequest().body("Unable to decode the topicname");
+        }
+
+        LOG.info("Sending batch to topic={}", topicName);
+        try (MessageBatchReader reader = new MessageBatchReader(objectMapper, body, array)) {
+            BatchSendResult result = batchSender.send(TOPIC_PREFIX + topicName, Session::createTopic, reader,
+                    batchSize != null ? batchSize : batchProperties.getSize(), batchInterval != null ? batchInterval : batchProperties.getInterval());
+            LOG.info("Sent batch to topic={}, sent={}, failed={}", topicName, result.getSent(), result.getFailed());
+            return ResponseEntity.status(batchStatus(result)).body(result);
+        } catch (JMSException | IOException e) {
+            LOG.error("Could not send batch to topic={}.", topicName, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Could not send messages. Error=" + e);
+        }
+    }
+
+    private HttpStatus batchStatus(BatchSendResult result) {
+        if (result.getError() != null) {
+            return HttpStatus.BAD_REQUEST;
+        }
+        if (result.getFailed() == 0) {
+            return HttpStatus.CREATED;
+        }
+        return result.getSent() > 0 ? HttpStatus.MULTI_STATUS : HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+
     /**
      * Receives a message from a queue. This example is supposed to be a publish
      * and subscribe scenario. Please create a queue subscription via e.G. the
-     * Dashboard first.
+     * Dashboard first. Answers 204 if no message arrived in time.
      *
      * @param queueName name of the queue where message will receive
+     * @param waitMs optional, time in milliseconds to wait for a message, overrides messaging.receive.message-wait-time
      * @return the message which has been received
      */
     @GetMapping(MESSAGE_QUEUE_REST_PATH)
-    public ResponseEntity<String> receiveMessageFromQueue(@PathVariable String queueName) {
+    public ResponseEntity<String> receiveMessageFromQueue(@PathVariable String queueName, @RequestParam(required = false) Long waitMs) {
         try {
             queueName = decodeValue(queueName);
         } catch (UnsupportedEncodingException e1) {
             return ResponseEntity.badRequest().body("Unable to decode the queuename");
         }
         /*
-         * create connection and session, don't forget to close those resources
-         * if you're not using autoclosable
+         * the session is borrowed from the pool and handed back afterwards, only
+         * the consumer has to be closed
          *
-         * you can also switch the acknowledgment mode in the session to e.G.
-         * Session.CLIENT_ACKNOWLEDGE. Remember to acknowledge the message by
-         * yourself then: byteMessage.acknowledge().
+         * the session acknowledges by client: the message is acknowledged once
+         * its body has been read. If that fails, the pool closes the session and
+         * the broker delivers the message again.
          */
-        try (Connection connection = connectionFactory.createConnection();
-                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE)) { // see comments above
-            connection.start();
-            // even though the JMS API is "createQueue" the queue will not be created on the message broker
-            Queue queue = session.createQueue(QUEUE_PREFIX + queueName);
-            MessageConsumer consumer = session.createConsumer(queue);
-            BytesMessage message = (BytesMessage) consumer.receive(); // Blocking call. You can either define a timeout or use a message listener
-            byte[] byteData = new byte[(int) message.getBodyLength()];
-            message.readBytes(byteData);
-            return ResponseEntity.ok(new String(byteData));
+        String destinationName = queueName;
+        long waitTime = waitMs != null ? waitMs : receiveProperties.getMessageWaitTime();
+        try {
+            return connectionPool.executeReceive(Session.CLIENT_ACKNOWLEDGE, pooledSession -> { // see comments above
+                Session session = pooledSession.getSession();
+                // even though the JMS API is "createQueue" the queue will not be created on the message broker
+                Queue queue = session.createQueue(QUEUE_PREFIX + destinationName);
+                try (MessageConsumer consumer = session.createConsumer(queue)) {
+                    long deadline = System.currentTimeMillis() + waitTime;
+                    BytesMessage message;
+                    boolean duplicate;
+                    do {
+                        long remaining = deadline - System.currentTimeMillis();
+                        long start = metrics.start();
+                        try {
+                            // waits at most until the deadline, the pooled session is held meanwhile
+                            message = (BytesMessage) (remaining > 0 ? consumer.receive(remaining) : consumer.receiveNoWait());
+                            metrics.received(QUEUE_PREFIX + destinationName, MessagingMetrics.OPERATION_SYNC, start, true);
+                        } catch (JMSException | RuntimeException e) {
+                            metrics.received(QUEUE_PREFIX + destinationName, MessagingMetrics.OPERATION_SYNC, start, false);
+                            throw e;
+                        }
+                        if (message == null) {
+                            return ResponseEntity.noContent().<String> build();
+                        }
+                        duplicate = !deduplicator.claim(QUEUE_PREFIX + destinationName, message);
+                        if (duplicate) {
+                            acknowledge(message, QUEUE_PREFIX + destinationName); // already processed, drop it
+                        }
+                    } while (duplicate);
+                    try {
+                        metrics.receivedPayload(QUEUE_PREFIX + destinationName, message.getBodyLength());
+                        byte[] byteData = MessageCodec.readBody(message); // decompressed if needed
+                        acknowledge(message, QUEUE_PREFIX + destinationName);
+                        deduplicator.processed(QUEUE_PREFIX + destinationName, message);
+                        return ResponseEntity.ok(new String(byteData, StandardCharsets.UTF_8));
+                    } catch (JMSException | RuntimeException e) {
+                        deduplicator.release(QUEUE_PREFIX + destinationName, message);
+                        throw e;
+                    }
+                }
+            });
         } catch (JMSException e) {
             LOG.error("Could not receive message.", e);
             LOG.error("Could not receive message from queue={}.", queueName, e);
@@ -120,7 +467,135 @@ public class MessagingServiceRestController {
         }
     }
 
+    /**
+     * Receives a message from a queue subscribed to topics and writes its body as is to the response.
+     * The message is acknowledged after it has been written. Answers 204 if no message arrived in time.
+     * A compressed body is written as it is if the client accepts its codec, otherwise it is decompressed.
+     *
+     * @param queueName      name of the queue
+     * @param waitMs         optional, time in milliseconds to wait for a message, overrides messaging.receive.wait-time
+     * @param acceptEncoding optional, codecs the client can decompress
+     * @param response       the body is copied in chunks to its output stream
+     */
+    @GetMapping(path = MESSAGE_QUEUE_BINARY_REST_PATH, produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void receiveBinaryMessage(@PathVariable String queueName, @RequestParam(required = false) Long waitMs,
+            @RequestHeader(name = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding, HttpServletResponse response)
+            throws IOException {
+        try {
+            queueName = decodeValue(queueName);
+        } catch (UnsupportedEncodingException e) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "Unable to decode the queuename");
+            return;
+        }
+
+        try {
+            boolean received = binaryTransfer.receive(QUEUE_PREFIX + queueName, Session::createQueue,
+                    waitMs != null ? waitMs : receiveProperties.getWaitTime(), acceptEncoding, (length, codec) -> {
+                        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+                        if (codec != MessageCodec.NONE) {
+                            response.setHeader(HttpHeaders.CONTENT_ENCODING, codec.getName());
+                        }
+                        if (length >= 0) {
+                            response.setContentLengthLong(length);
+                        }
+                        return response.getOutputStream();
+                    });
+            if (!received) {
+                response.setStatus(HttpStatus.NO_CONTENT.value());
+            }
+        } catch (JMSException | IOException e) {
+            LOG.error("Could not receive binary message from queue={}.", queueName, e);
+            if (!response.isCommitted()) {
+                response.sendError(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Could not receive message from queue. Error=" + e);
+            }
+        }
+    }
+
+    /**
+     * Receives up to max messages from a queue subscribed to topics and returns them as JSON array.
+     * The messages are acknowledged together after the array has been written.
+     *
+     * @param queueName name of the queue
+     * @param max optional, overrides messaging.receive.max-messages
+     * @param waitMs optional, time in milliseconds to wait for messages, overrides messaging.receive.wait-time
+     * @return the messages which have been received, possibly none
+     */
+    @GetMapping(path = MESSAGES_QUEUE_REST_PATH, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> receiveMessages(@PathVariable String queueName, @RequestParam(required = false) Integer max,
+            @RequestParam(required = false) Long waitMs) {
+        try {
+            queueName = decodeValue(queueName);
+        } catch (UnsupportedEncodingException e) {
+            return ResponseEntity.badRequest().body("Unable to decode the queuename");
+        }
+        int maxMessages = max != null ? max : receiveProperties.getMaxMessages();
+        if (maxMessages < 1 || maxMessages > receiveProperties.getMaxMessagesLimit()) {
+            return ResponseEntity.badRequest().body("max must be between 1 and " + receiveProperties.getMaxMessagesLimit());
+        }
+
+        try {
+            byte[] messages = batchReceiver.receive(QUEUE_PREFIX + queueName, Session::createQueue, maxMessages,
+                    waitMs != null ? waitMs : receiveProperties.getWaitTime());
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(messages);
+        } catch (JMSException | IOException e) {
+            LOG.error("Could not receive messages from queue={}.", queueName, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Could not receive messages from queue. Error=" + e);
+        }
+    }
+
+    /**
+     * Streams the messages of a queue subscribed to topics as server-sent events or as NDJSON (see Accept header).
+     * The stream ends after timeout ms without a message, after max messages or when the client disconnects.
+     *
+     * @param queueName name of the queue
+     * @param timeout optional, overrides messaging.stream.receive-timeout
+     * @param max optional, overrides messaging.stream.max-messages
+     * @param prefetch optional, overrides messaging.stream.prefetch
+     * @return the stream of messages
+     */
+    @GetMapping(path = MESSAGES_QUEUE_STREAM_REST_PATH, produces = { MediaType.TEXT_EVENT_STREAM_VALUE, MediaType.APPLICATION_NDJSON_VALUE })
+    public ResponseEntity<Flux<String>> streamMessages(@PathVariable String queueName, @RequestParam(required = false) Long timeout,
+            @RequestParam(required = false) Integer max, @RequestParam(required = false) Integer prefetch) {
+        try {
+            queueName = decodeValue(queueName);
+        } catch (UnsupportedEncodingException e) {
+            return ResponseEntity.badRequest().body(Flux.just("Unable to decode the queuename"));
+        }
+
+        return ResponseEntity.ok(messageStreamer.stream(queueName, timeout != null ? timeout : streamProperties.getReceiveTimeout(),
+                max != null ? max : streamProperties.getMaxMessages(), prefetch != null ? prefetch : streamProperties.getPrefetch()));
+    }
+
     private String decodeValue(String value) throws UnsupportedEncodingException {
-        return URLDecoder.decode(value, StandardCharsets.UTF_8.toString());
+        String decodedValue = decodedValues.get(value);
+        if (decodedValue == null) {
+            decodedValue = URLDecoder.decode(value, StandardCharsets.UTF_8.toString());
+            decodedValues.put(value, decodedValue);
+        }
+        return decodedValue;
+    }
+
+    private void acknowledge(BytesMessage message, String destinationName) throws JMSException {
+        long start = metrics.start();
+        try {
+            message.acknowledge();
+            metrics.acknowledged(destinationName, MessagingMetrics.OPERATION_SYNC, start, true);
+        } catch (JMSException | RuntimeException e) {
+            metrics.acknowledged(destinationName, MessagingMetrics.OPERATION_SYNC, start, false);
+            throw e;
+        }
+    }
+
+    private HttpStatus sendFailureStatus(JMSException e) {
+        if (e instanceof InvalidDestinationException) {
+            return HttpStatus.NOT_FOUND;
+        }
+        return connectionPool.isUnreachable(e) ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    // Retry-After is given in whole seconds
+    private static <T> ResponseEntity<T> tooManyRequests(long retryAfterMillis, T body) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(TimeUnit.MILLISECONDS.toSeconds(retryAfterMillis + 999))).body(body);
     }
 }
@@ -0,0 +1,251 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.spool;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.compression.MessageCompressor;
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceSpoolProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.DestinationFactory;
+import com.sap.xbem.sample.sapcp.jms.p2p.pool.MessagingServiceConnectionPool;
+
+/**
+ * Takes over sends while the broker is not reachable. The messages are written
+ * to a {@link MessageJournal} on local disk and sent to the broker later on, in
+ * the order they were spooled. Sends which the broker rejects, e.g. for an
+ * unknown destination, are not spooled but fail right away.
+ * <p>
+ * Once a message for a destination is in the spool, the following sends to
+ * that destination are spooled as well until its spooled messages have been
+ * sent, so they can't overtake them. Sends to other destinations go to the
+ * broker right away. While a pooled connection is failing over, all sends are
+ * spooled and don't wait for the failover.
+ * <p>
+ * A background thread sends the spooled messages every
+ * {@link MessagingServiceSpoolProperties#getReplayInterval()} in transactions
+ * of {@link MessagingServiceSpoolProperties#getReplayBatchSize()} messages.
+ * They are removed from the journal after the commit. If the application stops
+ * in between, the transaction is sent again after the restart, i.e. the
+ * messages are delivered at least once. If the broker rejects a spooled
+ * message {@link MessagingServiceSpoolProperties#getMaxReplayAttempts()} times,
+ * it is moved to a second journal in the sub directory {@code dead-letter}, so
+ * that it can't hold up the messages behind it. The dead letters have their own
+ * bound, {@link MessagingServiceSpoolProperties#getDeadLetterMaxSize()}, and
+ * are reported when the spool is opened.
+ * <p>
+ * Does nothing unless {@link MessagingServiceSpoolProperties#isEnabled()}.
+ */
+@Component
+public class MessageSpool implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageSpool.class);
+    private static final String TOPIC_PREFIX = "topic:";
+    private static final String DEAD_LETTER_DIRECTORY = "dead-letter";
+
+    private final MessagingServiceConnectionPool connectionPool;
+    private final MessagingMetrics metrics;
+    private final MessageCompressor compressor;
+    private final MessageJournal journal;
+    private final MessageJournal deadLetters;
+    private final int replayBatchSize;
+    private final long replayInterval;
+    private final int maxReplayAttempts;
+    private final ScheduledExecutorService replayExecutor;
+    private final LongAdder spooled = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private int failedAttempts; // of the oldest message, replay thread only
+
+    @Autowired
+    public MessageSpool(MessagingServiceConnectionPool connectionPool, MessagingServiceSpoolProperties properties, MessagingMetrics metrics,
+            MessageCompressor compressor) throws IOException {
+        this.connectionPool = connectionPool;
+        this.metrics = metrics;
+        this.compressor = compressor;
+        this.replayBatchSize = Math.max(1, properties.getReplayBatchSize());
+        this.replayInterval = properties.getReplayInterval();
+        this.maxReplayAttempts = Math.max(1, properties.getMaxReplayAttempts());
+        if (!properties.isEnabled()) {
+            this.journal = null;
+            this.deadLetters = null;
+            this.replayExecutor = null;
+            return;
+        }
+        Path directory = Paths.get(properties.getDirectory());
+        this.journal = new MessageJournal(directory, properties.getSegmentSize(), properties.getMaxSize());
+        this.deadLetters = new MessageJournal(directory.resolve(DEAD_LETTER_DIRECTORY), properties.getSegmentSize(),
+                properties.getDeadLetterMaxSize());
+        if (!deadLetters.isEmpty()) {
+            LOG.warn("The spool holds {} dead letters of {} bytes in {}, they are kept until the directory is cleaned up.",
+                    deadLetters.getPendingMessages(), deadLetters.getPendingBytes(), directory.resolve(DEAD_LETTER_DIRECTORY).toAbsolutePath());
+        }
+        this.replayExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "messaging-spool-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replayExecutor.scheduleWithFixedDelay(this::replay, 0, replayInterval, TimeUnit.MILLISECONDS);
+        metrics.gauge("messaging.spool.messages", journal, MessageJournal::getPendingMessages);
+        metrics.gauge("messaging.spool.bytes", journal, MessageJournal::getPendingBytes);
+        metrics.gauge("messaging.spool.dead-letters", deadLetters, MessageJournal::getPendingMessages);
+        metrics.counter("messaging.spool.spooled", spooled, LongAdder::sum);
+        metrics.counter("messaging.spool.replayed", replayed, LongAdder::sum);
+    }
+
+    public boolean isEnabled() {
+        return journal != null;
+    }
+
+    /**
+     * Spools the message if earlier messages for the destination are still
+     * waiting in the spool or the broker connection is failing over.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param payload
+     *            message body
+     * @return {@code true} if the message has been spooled, {@code false} if it
+     *         should be sent right away
+     */
+    public boolean spoolIfPending(String destinationName, byte[] payload) {
+        if (journal == null || (journal.getPendingMessages(destinationName) == 0 && !connectionPool.isInterrupted())) {
+            return false;
+        }
+        return spool(destinationName, payload);
+    }
+
+    /**
+     * Spools the message after sending it failed, if the broker can't be
+     * reached.
+     *
+     * @param destinationName
+     *            destination name including the mandatory prefix
+     * @param payload
+     *            message body
+     * @param failure
+     *            exception of the send
+     * @return {@code true} if the message has been spooled, {@code false} if
+     *         the spool is disabled, full or could not be written or the broker
+     *         rejected the message
+     */
+    public boolean spoolIfUnreachable(String destinationName, byte[] payload, JMSException failure) {
+        if (journal == null || !connectionPool.isUnreachable(failure)) {
+            return false;
+        }
+        return spool(destinationName, payload);
+    }
+
+    private boolean spool(String destinationName, byte[] payload) {
+        try {
+            if (journal.append(destinationName, payload)) {
+                spooled.increment();
+                return true;
+            }
+            LOG.warn("The spool is full, the message for destination={} is not spooled.", destinationName);
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.error("Could not spool the message for destination={}.", destinationName, e);
+        }
+        return false;
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (journal == null) {
+            return;
+        }
+        replayExecutor.shutdown();
+        if (!replayExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+            replayExecutor.shutdownNow();
+        }
+        journal.close();
+        deadLetters.close();
+    }
+
+    /**
+     * Sends the spooled messages until the spool is empty or sending fails.
+     * After the broker rejected a transaction, the oldest message is sent on
+     * its own until it went through or was moved to the dead letters.
+     */
+    private void replay() {
+        try {
+            while (!journal.isEmpty()) {
+                List<MessageJournal.Record> records = journal.read(failedAttempts > 0 ? 1 : replayBatchSize);
+                if (records.isEmpty()) {
+                    return;
+                }
+                try {
+                    send(records);
+                    replayed.add(records.size());
+                    LOG.debug("Replayed {} spooled messages, {} are pending.", records.size(), journal.getPendingMessages() - records.size());
+                } catch (JMSException e) {
+                    if (connectionPool.isUnreachable(e)) {
+                        LOG.warn("Could not replay the spooled messages, {} are pending. Retrying in {}ms. Error={}", journal.getPendingMessages(),
+                                replayInterval, e.toString());
+                        return;
+                    }
+                    failedAttempts++;
+                    if (records.size() > 1 || failedAttempts < maxReplayAttempts) {
+                        LOG.warn("The broker rejected the spooled messages, attempt {} of {}. Retrying in {}ms. Error={}", failedAttempts,
+                                maxReplayAttempts, replayInterval, e.toString());
+                        return;
+                    }
+                    moveToDeadLetters(records.get(0), e);
+                }
+                journal.remove(records);
+                failedAttempts = 0;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Could not replay the spooled messages.", e);
+        }
+    }
+
+    private void send(List<MessageJournal.Record> records) throws JMSException {
+        connectionPool.execute(Session.SESSION_TRANSACTED, pooledSession -> {
+            for (MessageJournal.Record record : records) {
+                String destinationName = record.getDestinationName();
+                MessageProducer producer = pooledSession.getProducer(destinationName, getDestinationFactory(destinationName));
+                BytesMessage message = compressor.createMessage(pooledSession.getSession(), destinationName, record.getBody());
+                long start = metrics.start();
+                try {
+                    producer.send(message);
+                    metrics.sent(destinationName, MessagingMetrics.OPERATION_SPOOL, start, record.getBody().length, true);
+                } catch (JMSException | RuntimeException e) {
+                    metrics.sent(destinationName, MessagingMetrics.OPERATION_SPOOL, start, record.getBody().length, false);
+                    throw e;
+                }
+            }
+            pooledSession.getSession().commit();
+            return null;
+        });
+    }
+
+    private void moveToDeadLetters(MessageJournal.Record record, JMSException failure) throws IOException {
+        if (deadLetters.append(record.getDestinationName(), record.getBody())) {
+            LOG.error("The broker rejected the spooled message for destination={} {} times, it has been moved to the dead letters. Error={}",
+                    record.getDestinationName(), failedAttempts, failure.toString());
+        } else {
+            LOG.error("The broker rejected the spooled message for destination={} {} times, it has been dropped as the dead letters are full. Error={}",
+                    record.getDestinationName(), failedAttempts, failure.toString());
+        }
+    }
+
+    private static DestinationFactory getDestinationFactory(String destinationName) {
+        return destinationName.startsWith(TOPIC_PREFIX) ? Session::createTopic : Session::createQueue;
+    }
+}
@@ -0,0 +1,39 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.config;
+
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Only part of the Java 21 build (maven profile {@code virtual-threads}).
+ * Tomcat runs every request on a new virtual thread instead of a thread of its
+ * pool, so the blocking JMS calls of the controller (e.g.
+ * {@code consumer.receive()}) no longer tie up a platform thread while they
+ * wait. A long-poll receive then costs a pooled session and a few KB of heap.
+ * <p>
+ * The pool still limits how many receives wait at once, see
+ * {@code messaging.pool.max-sessions} and
+ * {@code messaging.pool.max-receive-sessions}. With the defaults the ninth
+ * waiting receive fails after {@code messaging.pool.borrow-timeout}.
+ * <p>
+ * Turn it off with {@code messaging.virtual-threads.enabled=false}.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "messaging.virtual-threads", name = "enabled", matchIfMissing = true)
+public class VirtualThreadConfig {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadConfig.class);
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer() {
+        return protocolHandler -> {
+            protocolHandler.setExecutor(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-virtual-", 0).factory()));
+            LOG.info("Handling requests on virtual threads.");
+        };
+    }
+}
@@ -0,0 +1,67 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.ratelimit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sap.xbem.sample.sapcp.jms.p2p.config.MessagingServiceRateLimitProperties;
+import com.sap.xbem.sample.sapcp.jms.p2p.metrics.MessagingMetrics;
+
+public class SendRateLimiterTest {
+
+    private MessagingServiceRateLimitProperties properties;
+
+    @Before
+    public void setUp() {
+        properties = new MessagingServiceRateLimitProperties();
+        properties.setEnabled(true);
+        properties.setGlobalRate(0);
+        properties.setDestinationRate(1); // one permit, refilled after a second
+        properties.setBurst(1);
+        properties.setMaxDestinations(2);
+    }
+
+    @Test
+    public void limitsEachDestination() {
+        SendRateLimiter rateLimiter = create();
+        assertEquals(0, rateLimiter.tryAcquire("queue:a"));
+        assertTrue(rateLimiter.tryAcquire("queue:a") > 0);
+        assertEquals(0, rateLimiter.tryAcquire("queue:b"));
+
+        rateLimiter.release("queue:a");
+        assertEquals(0, rateLimiter.tryAcquire("queue:a"));
+    }
+
+    @Test
+    public void doesNotResetBusyDestinationsWhenCyclingThroughMany() {
+        SendRateLimiter rateLimiter = create();
+        assertEquals(0, rateLimiter.tryAcquire("queue:a"));
+        assertEquals(0, rateLimiter.tryAcquire("queue:b"));
+        assertEquals(0, rateLimiter.tryAcquire("queue:c")); // no room, shares the limit of all others
+        assertTrue(rateLimiter.tryAcquire("queue:d") > 0);
+
+        assertTrue(rateLimiter.tryAcquire("queue:a") > 0); // kept its empty bucket
+        assertTrue(rateLimiter.tryAcquire("queue:b") > 0);
+    }
+
+    @Test
+    public void dropsIdleDestinationForNewOne() throws InterruptedException {
+        properties.setDestinationRate(10);
+        properties.setBurst(0.1); // one permit, refilled after 100ms
+        SendRateLimiter rateLimiter = create();
+        assertEquals(0, rateLimiter.tryAcquire("queue:a"));
+        assertEquals(0, rateLimiter.tryAcquire("queue:b"));
+        Thread.sleep(150); // both buckets refilled
+
+        assertEquals(0, rateLimiter.tryAcquire("queue:c")); // takes the place of queue:a
+        assertEquals(0, rateLimiter.tryAcquire("queue:d")); // takes the place of queue:b
+        assertTrue(rateLimiter.tryAcquire("queue:c") > 0);
+        assertTrue(rateLimiter.tryAcquire("queue:d") > 0);
+    }
+
+    private SendRateLimiter create() {
+        return new SendRateLimiter(properties, MessagingMetrics.noRegistry());
+    }
+}
@@ -0,0 +1,230 @@
+package com.sap.xbem.sample.sapcp.jms.p2p.spool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MessageJournalTest {
+
+    private static final String DESTINATION = "queue:q";
+    private static final int RECORD_SIZE = 8 + 2 + 7 + 2; // header, destination length, "queue:q", body "mN"
+    private static final int SEGMENT_SIZE = 4 * RECORD_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("journal").toPath();
+    }
+
+    @Test
+    public void readsRecordsInOrderUntilRemoved() throws IOException {
+        try (MessageJournal journal = open(1024)) {
+            append(journal, "m1", "m2", "m3");
+            assertEquals(3, journal.getPendingMessages());
+            assertEquals(3, journal.getPendingMessages(DESTINATION));
+            assertEquals(0, journal.getPendingMessages("queue:other"));
+            assertEquals(3L * (RECORD_SIZE - 8), journal.getPendingBytes());
+
+            List<MessageJournal.Record> records = journal.read(2);
+            assertEquals(Arrays.asList("m1", "m2"), bodies(records));
+            assertEquals(DESTINATION, records.get(0).getDestinationName());
+            assertEquals(Arrays.asList("m1", "m2"), bodies(journal.read(2))); // reading doesn't remove
+
+            journal.remove(records);
+            assertEquals(1, journal.getPendingMessages());
+            assertEquals(Arrays.asList("m3"), bodies(journal.read(10)));
+
+            journal.remove(journal.read(10));
+            assertTrue(journal.isEmpty());
+            assertEquals(0, journal.getPendingMessages(DESTINATION));
+            assertEquals(0, journal.getPendingBytes());
+            assertTrue(journal.read(10).isEmpty());
+        }
+    }
+
+    @Test
+    public void rollsOverToNewSegmentsAndDeletesReadOnes() throws IOException {
+        try (MessageJournal journal = open(10 * SEGMENT_SIZE)) {
+            append(journal, "m0", "m1", "m2", "m3", "m4", "m5", "m6", "m7", "m8", "m9");
+            assertEquals(3, segments().size()); // 4 + 4 + 2 records
+
+            List<MessageJournal.Record> records = journal.read(10);
+            assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m4", "m5", "m6", "m7", "m8", "m9"), bodies(records));
+
+            journal.remove(records.subList(0, 5));
+            assertEquals(2, segments().size()); // the first one has been read completely
+            assertEquals(Arrays.asList("m5"), bodies(journal.read(1)));
+
+            journal.remove(journal.read(10));
+            assertEquals(0, segments().size());
+            append(journal, "m10");
+            assertEquals(1, segments().size());
+            assertEquals(Arrays.asList("m10"), bodies(journal.read(10)));
+        }
+    }
+
+    @Test
+    public void rejectsAppendsOnceFull() throws IOException {
+        try (MessageJournal journal = open(2 * SEGMENT_SIZE)) {
+            for (int i = 0; i < 8; i++) {
+                assertTrue(journal.append(DESTINATION, ("m" + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            assertFalse(journal.append(DESTINATION, "m8".getBytes(StandardCharsets.UTF_8)));
+            assertEquals(8, journal.getPendingMessages());
+
+            journal.remove(journal.read(4));
+            assertTrue(journal.append(DESTINATION, "m8".getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMessagesLargerThanASegment() throws IOException {
+        try (MessageJournal journal = open(1024)) {
+            journal.append(DESTINATION, new byte[SEGMENT_SIZE]);
+        }
+    }
+
+    @Test
+    public void recoversUnremovedRecordsAfterRestart() throws IOException {
+        try (MessageJournal journal = open(10 * SEGMENT_SIZE)) {
+            append(journal, "m0", "m1", "m2", "m3", "m4", "m5");
+            journal.remove(journal.read(3));
+        }
+        try (MessageJournal journal = open(10 * SEGMENT_SIZE)) {
+            assertEquals(3, journal.getPendingMessages());
+            assertEquals(3, journal.getPendingMessages(DESTINATION));
+            assertEquals(Arrays.asList("m3", "m4", "m5"), bodies(journal.read(10)));
+            append(journal, "m6");
+        }
+        try (MessageJournal journal = open(10 * SEGMENT_SIZE)) {
+            assertEquals(Arrays.asList("m3", "m4", "m5", "m6"), bodies(journal.read(10)));
+        }
+    }
+
+    @Test
+    public void doesNotTakeNewSegmentsForReadAfterTheJournalWasEmptied() throws IOException {
+        try (MessageJournal journal = open(10 * SEGMENT_SIZE)) {
+            append(journal, "m0", "m1", "m2", "m3", "m4");
+            journal.remove(journal.read(10));
+        }
+        try (MessageJournal journal = open(10 * SEGMENT_SIZE)) {
+            assertTrue(journal.isEmpty());
+            append(journal, "m5");
+        }
+        try (MessageJournal journal = open(10 * SEGMENT_SIZE)) {
+            assertEquals(Arrays.asList("m5"), bodies(journal.read(10)));
+        }
+    }
+
+    @Test
+    public void dropsTornTailAndAppendsAfterTheLastValidRecord() throws IOException {
+        try (MessageJournal journal = open(1024)) {
+            append(journal, "m0", "m1", "m2");
+        }
+        Path segment = segments().get(0);
+        write(segment, 2 * RECORD_SIZE + RECORD_SIZE - 1, new byte[] { 'x' }); // last byte of m2
+
+        try (MessageJournal journal = open(1024)) {
+            assertEquals(Arrays.asList("m0", "m1"), bodies(journal.read(10)));
+            append(journal, "m3");
+        }
+        try (MessageJournal journal = open(1024)) {
+            assertEquals(Arrays.asList("m0", "m1", "m3"), bodies(journal.read(10)));
+        }
+    }
+
+    @Test
+    public void dropsAllRecordsAfterAChecksumMismatch() throws IOException {
+        try (MessageJournal journal = open(1024)) {
+            append(journal, "m0", "m1", "m2");
+        }
+        write(segments().get(0), RECORD_SIZE + 4, new byte[] { 0, 0, 0, 0 }); // checksum of m1
+
+        try (MessageJournal journal = open(1024)) {
+            assertEquals(1, journal.getPendingMessages());
+            assertEquals(Arrays.asList("m0"), bodies(journal.read(10)));
+        }
+    }
+
+    @Test
+    public void dropsRecordCutOffByTruncation() throws IOException {
+        try (MessageJournal journal = open(1024)) {
+            append(journal, "m0", "m1", "m2");
+        }
+        Path segment = segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(2 * RECORD_SIZE + 10); // within m2
+        }
+
+        try (MessageJournal journal = open(1024)) {
+            assertEquals(Arrays.asList("m0", "m1"), bodies(journal.read(10)));
+        }
+    }
+
+    @Test
+    public void replaysAllRecordsWithoutValidCheckpoint() throws IOException {
+        try (MessageJournal journal = open(1024)) {
+            append(journal, "m0", "m1", "m2");
+            journal.remove(journal.read(2));
+        }
+        Files.write(directory.resolve("checkpoint"), new byte[] { 1, 2, 3 });
+
+        try (MessageJournal journal = open(1024)) {
+            assertEquals(Arrays.asList("m0", "m1", "m2"), bodies(journal.read(10)));
+        }
+    }
+
+    private MessageJournal open(long maxSize) throws IOException {
+        return new MessageJournal(directory, SEGMENT_SIZE, maxSize);
+    }
+
+    private static void append(MessageJournal journal, String... bodies) throws IOException {
+        for (String body : bodies) {
+            assertTrue(journal.append(DESTINATION, body.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.segment")) {
+            stream.forEach(segments::add);
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static void write(Path file, long position, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    private static List<String> bodies(List<MessageJournal.Record> records) {
+        List<String> bodies = new ArrayList<>();
+        for (MessageJournal.Record record : records) {
+            bodies.add(new String(record.getBody(), StandardCharsets.UTF_8));
+        }
+        return bodies;
+    }
+}